@@ -0,0 +1,83 @@
+package au.id.villar.synchronizer;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct {@link ByteBuffer}s of a fixed size, shared by the comparison and copy paths. Free buffers are
+ * kept per thread, so acquiring and releasing a buffer never contends with other threads.
+ */
+public class BufferPool {
+
+	public static final int DEFAULT_BUFFER_SIZE = 1024 * 1024;
+
+	private static final int MAX_FREE_BUFFERS_PER_THREAD = 4;
+
+	private final int bufferSize;
+	private final ThreadLocal<Deque<ByteBuffer>> freeBuffers = ThreadLocal.withInitial(ArrayDeque::new);
+
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder bytesOutstanding = new LongAdder();
+
+	public BufferPool(int bufferSize) {
+		if(bufferSize <= 0) {
+			throw new IllegalArgumentException("buffer size must be positive");
+		}
+		this.bufferSize = bufferSize;
+	}
+
+	public int getBufferSize() {
+		return bufferSize;
+	}
+
+	/**
+	 * Takes a cleared buffer from the pool, allocating a new one only if the current thread has none free.
+	 * The buffer must be given back with {@link #release(ByteBuffer)}.
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer buffer = freeBuffers.get().pollFirst();
+		if(buffer == null) {
+			misses.increment();
+			buffer = ByteBuffer.allocateDirect(bufferSize);
+		} else {
+			hits.increment();
+			buffer.clear();
+		}
+		bytesOutstanding.add(bufferSize);
+		return buffer;
+	}
+
+	public void release(ByteBuffer buffer) {
+		if(buffer == null || buffer.capacity() != bufferSize) {
+			throw new IllegalArgumentException("buffer doesn't belong to this pool");
+		}
+		bytesOutstanding.add(-bufferSize);
+		Deque<ByteBuffer> buffers = freeBuffers.get();
+		if(buffers.size() < MAX_FREE_BUFFERS_PER_THREAD) {
+			buffers.addFirst(buffer);
+		}
+	}
+
+	public long getHits() {
+		return hits.sum();
+	}
+
+	public long getMisses() {
+		return misses.sum();
+	}
+
+	/** Fraction (between 0 and 1) of acquisitions served with an already allocated buffer. */
+	public double getHitRate() {
+		long hits = getHits();
+		long total = hits + getMisses();
+		return total > 0? (double)hits / total: 0;
+	}
+
+	public long getBytesOutstanding() {
+		return bytesOutstanding.sum();
+	}
+
+}
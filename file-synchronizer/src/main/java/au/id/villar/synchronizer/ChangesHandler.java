@@ -10,6 +10,17 @@ public interface ChangesHandler {
 
 	void differentFiles(Path path1, Path path2);
 
+	/**
+	 * Only invoked when move detection is enabled. path1 exists only in dir1 and path2 exists only in dir2, but
+	 * both have the same size, date and content, so one of them is a moved or renamed version of the other.
+	 * missingPath1 is where path1 is missing in dir2, and missingPath2 where path2 is missing in dir1. Unless
+	 * overridden, both are reported as missing, as if moves weren't detected.
+	 */
+	default void movedPath(Path path1, Path missingPath1, Path path2, Path missingPath2) {
+		missingPath(path1, missingPath1);
+		missingPath(path2, missingPath2);
+	}
+
 	void errorFixingLastModified(Path path, Exception e);
 
 	void errorComparingFiles(Path path1, Path path2, Exception e);
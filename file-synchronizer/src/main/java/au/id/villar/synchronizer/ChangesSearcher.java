@@ -1,18 +1,28 @@
 package au.id.villar.synchronizer;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class ChangesSearcher {
 
 	public static final Level DEFAULT_LEVEL = Level.CONTENT;
 
+	/** Files smaller than this are compared with a single read per file, into buffers of their own pool. */
+	static final int SMALL_FILE_SIZE = 64 * 1024;
+
 	private final ChangesHandler handler;
 	private final Path dir1;
 	private final Path dir2;
@@ -21,6 +31,14 @@ public class ChangesSearcher {
 
 	private Level level;
 	private boolean fixLastModified;
+	private BufferPool bufferPool;
+	private BufferPool smallBufferPool;
+	private boolean detectMoves;
+	private int shardIndex;
+	private int shardCount;
+	private Progress progress;
+	private ContentBudget contentBudget;
+	private VerifiedCopies verifiedCopies;
 
 	private volatile boolean interrupted;
 
@@ -41,6 +59,10 @@ public class ChangesSearcher {
 
 		this.level = DEFAULT_LEVEL;
 		this.fixLastModified = false;
+		this.bufferPool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE);
+		this.smallBufferPool = new BufferPool(SMALL_FILE_SIZE);
+		this.shardIndex = 0;
+		this.shardCount = 1;
 	}
 
 	public void setLevel(Level level) {
@@ -51,12 +73,121 @@ public class ChangesSearcher {
 		this.fixLastModified = fixLastModified;
 	}
 
+	/**
+	 * Sets the pool the buffers for comparing files of at least {@link #SMALL_FILE_SIZE} bytes are taken from,
+	 * which are read sequentially in chunks of the pool's buffer size. Smaller files keep using small buffers,
+	 * unless the ones of this pool are smaller still.
+	 */
+	public void setBufferPool(BufferPool bufferPool) {
+		if(bufferPool == null) {
+			throw new IllegalArgumentException("buffer pool can't be null");
+		}
+		this.bufferPool = bufferPool;
+	}
+
+	public BufferPool getBufferPool() {
+		return bufferPool;
+	}
+
+	/**
+	 * If enabled, paths only found in one directory are not reported as soon as they are found. Instead, when the
+	 * search is over those existing only in dir1 are matched against those existing only in dir2 by size,
+	 * last-modified date and (if level is {@link Level#CONTENT}) content, and each match is reported through
+	 * {@link ChangesHandler#movedPath(Path, Path, Path, Path)}. The remaining ones, including every empty file,
+	 * are then reported as missing.
+	 */
+	public void setDetectMoves(boolean detectMoves) {
+		this.detectMoves = detectMoves;
+	}
+
+	/**
+	 * Restricts the search to one of count shards. Entries directly under dir1 and dir2 are assigned to a shard
+	 * by a hash of their name, so the union of the differences found by every shard is exactly what an unsharded
+	 * search finds, and each shard can be searched by a different process.
+	 *
+	 * @param index shard to search, from 0 to count - 1.
+	 */
+	public void setShard(int index, int count) {
+		if(count < 1 || index < 0 || index >= count) {
+			throw new IllegalArgumentException("invalid shard " + index + " of " + count);
+		}
+		this.shardIndex = index;
+		this.shardCount = count;
+	}
+
+	/**
+	 * Limits how many files get their content compared when level is {@link Level#CONTENT}, the rest are checked
+	 * by last-modified date. Null (the default) means no limit.
+	 */
+	public void setContentBudget(ContentBudget contentBudget) {
+		this.contentBudget = contentBudget;
+	}
+
+	/**
+	 * If set, files recorded there as copies are compared by reading only the copy and checking it against the
+	 * digest recorded for it, as long as both still have the size and last-modified date recorded. Each record
+	 * is used once.
+	 */
+	public void setVerifiedCopies(VerifiedCopies verifiedCopies) {
+		this.verifiedCopies = verifiedCopies;
+	}
+
+	/**
+	 * Starts estimating how much work there is to do by counting the entries and bytes under dir1 (within the
+	 * shard, if any) in background threads, and returns a {@link Progress} that the search keeps updated from
+	 * then on. Meant to be called once, before the search starts.
+	 */
+	public Progress trackProgress() {
+		if(progress == null) {
+			progress = new Progress();
+			progress.startEstimate(this, dir1);
+		}
+		return progress;
+	}
+
+	Progress getProgress() {
+		return progress;
+	}
+
 	public void setInterrupted(boolean interrupted) {
 		this.interrupted = interrupted;
 	}
 
+	boolean isInterrupted() {
+		return interrupted;
+	}
+
 	public void search() throws IOException, InterruptedException {
-		compareDirs(dir1, dir2);
+		DifferenceSpliterator differences = new DifferenceSpliterator(this, dir1, dir2, handler::comparing,
+				detectMoves);
+		try {
+			while(differences.tryAdvance(difference -> difference.notify(handler)));
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		if(interrupted) {
+			throw new InterruptedException();
+		}
+	}
+
+	/**
+	 * Returns the differences between both directories as a lazy stream, as an alternative to {@link #search()}.
+	 * Directories are only read as elements are pulled, so a short-circuiting operation stops the search as soon
+	 * as it's satisfied. A parallel stream splits the pending subtrees among threads and still keeps the order
+	 * in which {@link #search()} finds the differences (unless move detection is enabled, which prevents
+	 * splitting). The handler given to the constructor is not used, errors are returned as differences. Closing
+	 * the stream discards everything not visited yet, and once the stream ends or {@link #setInterrupted(boolean)}
+	 * is called no other element is produced. I/O errors reading a directory are thrown as
+	 * {@link UncheckedIOException}.
+	 */
+	public Stream<Difference> differences() {
+		DifferenceSpliterator differences;
+		try {
+			differences = new DifferenceSpliterator(this, dir1, dir2, (path1, path2) -> {}, detectMoves);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		return StreamSupport.stream(differences, false).onClose(differences::close);
 	}
 
 	private void validateDir(Path dir) {
@@ -84,62 +215,12 @@ public class ChangesSearcher {
 		throw new IllegalArgumentException("one dir contains the other and is not in the list of skip paths");
 	}
 
-	private void compareDirs(Path dir1, Path dir2) throws IOException, InterruptedException {
-		List<Path> paths1 = getFilesInDescendingOrder(dir1, pathsToSkipDir1);
-		List<Path> paths2 = getFilesInDescendingOrder(dir2, pathsToSkipDir2);
-
-		while(paths1.size() > 0 && paths2.size() > 0 && !interrupted) {
-			Path path1 = paths1.remove(paths1.size() - 1);
-			Path path2 = paths2.remove(paths2.size() - 1);
-
-			int compared = path1.getFileName().compareTo(path2.getFileName());
-			if(compared == 0) {
-				handler.comparing(path1, path2);
-
-				boolean path1IsDir = Files.isDirectory(path1);
-				boolean path2IsDir = Files.isDirectory(path2);
-
-				if(path1IsDir) {
-					if(path2IsDir) {
-						compareDirs(path1, path2);
-					} else {
-						handler.differentFiles(path1, path2);
-					}
-				} else if(path2IsDir || !filesAreEqual(path1, path2)) {
-					handler.differentFiles(path1, path2);
-				}
-
-			} else if (compared > 0) {
-				paths1.add(path1);
-				handler.missingPath(path2, dir1.resolve(path2.getFileName()));
-			} else {
-				paths2.add(path2);
-				handler.missingPath(path1, dir2.resolve(path1.getFileName()));
-			}
-		}
-
-		while(paths1.size() > 0 && !interrupted) {
-			Path path = paths1.remove(paths1.size() - 1);
-			handler.missingPath(path, dir2.resolve(path.getFileName()));
-		}
-
-		while(paths2.size() > 0 && !interrupted) {
-			Path path = paths2.remove(paths2.size() - 1);
-			handler.missingPath(path, dir1.resolve(path.getFileName()));
-		}
-
-		if(interrupted) {
-			throw new InterruptedException();
-		}
-	}
-
-	private List<Path> getFilesInDescendingOrder(Path dir, Set<Path> pathsToSkip) throws IOException {
+	List<Path> getFilesInDescendingOrder(Path dir, boolean inDir1) throws IOException {
+		Set<Path> pathsToSkip = inDir1? pathsToSkipDir1: pathsToSkipDir2;
 		List<Path> files = new ArrayList<>();
 		try(DirectoryStream<Path> stream = Files.newDirectoryStream(dir)) {
 			for(Path node: stream) {
-				if(pathsToSkip != null && pathsToSkip.contains(node)) {
-					pathsToSkip.remove(node);
-				} else {
+				if((pathsToSkip == null || !pathsToSkip.contains(node)) && isInShard(dir, node, inDir1)) {
 					files.add(node);
 				}
 			}
@@ -149,8 +230,19 @@ public class ChangesSearcher {
 		return files;
 	}
 
-	private boolean filesAreEqual(Path path1, Path path2) throws IOException, InterruptedException {
-		if(Files.size(path1) != Files.size(path2))
+	private boolean isInShard(Path dir, Path node, boolean inDir1) {
+		return shardCount == 1 || !dir.equals(inDir1? dir1: dir2)
+				|| Math.floorMod(node.getFileName().toString().hashCode(), shardCount) == shardIndex;
+	}
+
+	/** Errors found comparing the files are given to errors, in which case the files are taken as equal. */
+	boolean filesAreEqual(Path path1, Path path2, Consumer<Difference> errors)
+			throws IOException, InterruptedException {
+		long start = contentBudget != null? System.nanoTime(): 0;
+		long size = Files.size(path1);
+		if(progress != null)
+			progress.bytesVisited(size);
+		if(size != Files.size(path2))
 			return false;
 		if(level == Level.SIZE)
 			return true;
@@ -158,12 +250,37 @@ public class ChangesSearcher {
 		boolean sameLastModified = lastModified == getLastModified(path2);
 		if(sameLastModified && level == Level.LAST_MODIFIED)
 			return true;
-		if(contentIsEqual(path1, path2)) {
+		if(sameLastModified && verifiedCopies != null) {
+			Path copy = path2;
+			byte[] digest = verifiedCopies.take(copy, size, lastModified);
+			if(digest == null) {
+				copy = path1;
+				digest = verifiedCopies.take(copy, size, lastModified);
+			}
+			if(digest != null) {
+				try {
+					return MessageDigest.isEqual(digest, digestOf(copy, size));
+				} catch (IOException e) {
+					errors.accept(new Difference(Difference.Type.ERROR_COMPARING_FILES, path1, path2, e));
+					return true;
+				}
+			}
+		}
+		if(sameLastModified && contentBudget != null) {
+			Path relativePath = dir1.relativize(path1);
+			long from = contentBudget.verifyFrom(relativePath);
+			if(from < 0)
+				return true;
+			boolean equal = contentIsEqual(path1, path2, size, from, relativePath, start, errors);
+			contentBudget.verified(relativePath);
+			return equal;
+		}
+		if(contentIsEqual(path1, path2, size, 0, null, 0, errors)) {
 			if(!sameLastModified && fixLastModified) {
 				try {
 					Files.setLastModifiedTime(path2, FileTime.from(lastModified, TimeUnit.MILLISECONDS));
 				} catch (IOException e)  {
-					handler.errorFixingLastModified(path2, e);
+					errors.accept(new Difference(Difference.Type.ERROR_FIXING_LAST_MODIFIED, path2, null, e));
 				}
 			}
 			return true;
@@ -172,38 +289,124 @@ public class ChangesSearcher {
 		}
 	}
 
-	private boolean contentIsEqual(Path path1, Path path2) throws InterruptedException {
-		byte[] buffer1 = new byte[2048];
-		byte[] buffer2 = new byte[2048];
+	boolean movedFilesAreEqual(Path path1, Path path2) throws IOException, InterruptedException {
+		long size = Files.size(path1);
+		if(size != Files.size(path2) || getLastModified(path1) != getLastModified(path2))
+			return false;
+		if(level != Level.CONTENT)
+			return true;
+		try {
+			return compareContent(path1, path2, size, 0, null, 0);
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	boolean dirsAreEqual(Path dir1, Path dir2) throws InterruptedException {
+		ChangesSearcher searcher = new ChangesSearcher(handler, dir1, dir2, Collections.emptyList());
+		searcher.setLevel(level == Level.CONTENT? Level.CONTENT: Level.LAST_MODIFIED);
+		searcher.setBufferPool(bufferPool);
+		searcher.smallBufferPool = smallBufferPool;
+		searcher.interrupted = interrupted;
+		boolean equal;
+		try (Stream<Difference> differences = searcher.differences()) {
+			equal = differences.noneMatch(d -> d.getType() != Difference.Type.ERROR_FIXING_LAST_MODIFIED);
+		}
+		if(interrupted || searcher.interrupted) {
+			throw new InterruptedException();
+		}
+		return equal;
+	}
+
+	private boolean contentIsEqual(Path path1, Path path2, long size, long from, Path budgeted, long startNanos,
+			Consumer<Difference> errors) throws InterruptedException {
+		try {
+			return compareContent(path1, path2, size, from, budgeted, startNanos);
+		} catch (IOException e) {
+			errors.accept(new Difference(Difference.Type.ERROR_COMPARING_FILES, path1, path2, e));
+		}
+		return true;
+	}
+
+	/**
+	 * Compares both files, of the given size, from the given offset. Small files fit in a small buffer, so they
+	 * take a single read each and never tie up a large buffer; bigger ones are read one large buffer at a time.
+	 * If budgeted is not null, it's the path (relative to dir1) the comparison is charged to in
+	 * {@link #contentBudget}, with all the time since startNanos (so reading the attributes and opening and
+	 * closing the files count as well); when the budget runs out before the end the comparison stops there, and
+	 * the files are taken as equal as far as this search is concerned.
+	 */
+	private boolean compareContent(Path path1, Path path2, long size, long from, Path budgeted, long startNanos)
+			throws IOException, InterruptedException {
+		BufferPool pool = size < SMALL_FILE_SIZE && bufferPool.getBufferSize() > SMALL_FILE_SIZE?
+				smallBufferPool: bufferPool;
+		ByteBuffer buffer1 = pool.acquire();
+		ByteBuffer buffer2 = pool.acquire();
 
 		int len1;
 		int len2;
+		long chargedUntil = startNanos;
 
-		try (InputStream stream1 = Files.newInputStream(path1);
-				InputStream stream2 = Files.newInputStream(path2)) {
+		try (FileChannel channel1 = FileChannel.open(path1, StandardOpenOption.READ);
+				FileChannel channel2 = FileChannel.open(path2, StandardOpenOption.READ)) {
+			long position = from;
+			channel1.position(from);
+			channel2.position(from);
 			do {
-				len1 = stream1.read(buffer1);
-				len2 = stream2.read(buffer2);
-				if (len1 != len2 || !arrayEquals(buffer1, buffer2, len1))
+				len1 = readFully(channel1, buffer1);
+				len2 = readFully(channel2, buffer2);
+				boolean equal = len1 == len2 && buffer1.equals(buffer2);
+				boolean remaining = true;
+				if(budgeted != null) {
+					long now = System.nanoTime();
+					remaining = contentBudget.charge(len1, now - chargedUntil);
+					chargedUntil = now;
+				}
+				if(!equal)
 					return false;
-			} while (len1 != -1 && !interrupted);
+				position += len1;
+				if(!remaining && len1 == buffer1.capacity()) {
+					contentBudget.stop(budgeted, position);
+					return true;
+				}
+			} while(len1 == buffer1.capacity() && !interrupted);
 
 			if(interrupted) {
 				throw new InterruptedException();
 			}
 
-		} catch (IOException e) {
-			handler.errorComparingFiles(path1, path2, e);
+		} finally {
+			pool.release(buffer1);
+			pool.release(buffer2);
+			if(budgeted != null)
+				contentBudget.charge(0, System.nanoTime() - chargedUntil);
 		}
 		return true;
 	}
 
-	private boolean arrayEquals(byte[] a1, byte[] a2, int length) {
-		for(int x = 0; x < length; x++) {
-			if(a1[x] != a2[x])
-				return false;
+	/** Reads the whole file to compute the digest {@link VerifiedCopies} keeps for it. */
+	private byte[] digestOf(Path file, long size) throws IOException, InterruptedException {
+		BufferPool pool = size < SMALL_FILE_SIZE && bufferPool.getBufferSize() > SMALL_FILE_SIZE?
+				smallBufferPool: bufferPool;
+		ByteBuffer buffer = pool.acquire();
+		MessageDigest digest = VerifiedCopies.newDigest();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while(readFully(channel, buffer) > 0) {
+				if(interrupted)
+					throw new InterruptedException();
+				digest.update(buffer);
+			}
+		} finally {
+			pool.release(buffer);
 		}
-		return true;
+		return digest.digest();
+	}
+
+	private int readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		buffer.clear();
+		while(buffer.hasRemaining() && channel.read(buffer) != -1);
+		buffer.flip();
+		return buffer.limit();
 	}
 
 	private long getLastModified(Path path) throws IOException {
@@ -0,0 +1,129 @@
+package au.id.villar.synchronizer;
+
+import java.nio.file.Path;
+import java.util.Comparator;
+
+/**
+ * Limits how much of a {@link Level#CONTENT} search actually compares contents, so a big tree can be verified a
+ * slice at a time. Files are taken in the order the search finds them, starting at a cursor (where the previous
+ * run stopped), until the time spent comparing or the bytes compared reach the budget; every other file is
+ * checked as in {@link Level#LAST_MODIFIED}. The budget is checked after every buffer compared, so a run never
+ * goes over it by more than one buffer, and a file too big for what is left is stopped in the middle and resumed
+ * from there by the next run. Passing {@link #getNextCursor()} and {@link #getNextCursorOffset()} to the next run
+ * makes successive runs rotate through the whole tree.
+ */
+public class ContentBudget {
+
+	private static final Comparator<Path> PATH_ORDER = new PathOrder();
+
+	private final Path cursor;
+	private final long cursorOffset;
+	private final long maxNanos;
+	private final long maxBytes;
+
+	private Path lastVerified;
+	private Path stoppedAt;
+	private long stoppedOffset;
+	private long filesVerified;
+	private long bytesVerified;
+	private long nanosSpent;
+	private boolean exhausted;
+
+	/**
+	 * @param cursor path, relative to dir1, of the last file verified by a previous run, or of the file it stopped
+	 *               in the middle of if cursorOffset is not 0. Null to start from the beginning.
+	 * @param maxNanos time the files whose contents are compared may take, from reading their attributes to
+	 *                 closing them, not counting anything else done by the search. Long.MAX_VALUE for no limit.
+	 * @param maxBytes bytes (of each of the compared files) the verification may read. Long.MAX_VALUE for no limit.
+	 */
+	public ContentBudget(Path cursor, long cursorOffset, long maxNanos, long maxBytes) {
+		if(maxNanos <= 0 || maxBytes <= 0) {
+			throw new IllegalArgumentException("budget must be positive");
+		}
+		if(cursorOffset < 0 || cursorOffset > 0 && cursor == null) {
+			throw new IllegalArgumentException("invalid cursor offset: " + cursorOffset);
+		}
+		this.cursor = cursor;
+		this.cursorOffset = cursorOffset;
+		this.maxNanos = maxNanos;
+		this.maxBytes = maxBytes;
+	}
+
+	public synchronized long getFilesVerified() {
+		return filesVerified;
+	}
+
+	public synchronized long getBytesVerified() {
+		return bytesVerified;
+	}
+
+	/** Tells if the budget ran out before reaching the end of the tree. */
+	public synchronized boolean isExhausted() {
+		return exhausted;
+	}
+
+	/**
+	 * Returns the cursor for the next run: the last file verified (or the one being verified) when the budget ran
+	 * out, or null if the end of the tree was reached, so the next run starts over.
+	 */
+	public synchronized Path getNextCursor() {
+		if(!exhausted)
+			return null;
+		return stoppedAt != null? stoppedAt: lastVerified != null? lastVerified: cursor;
+	}
+
+	/** Returns how much of the file at {@link #getNextCursor()} has been verified, or 0 if all of it was. */
+	public synchronized long getNextCursorOffset() {
+		if(!exhausted)
+			return 0;
+		return stoppedAt != null? stoppedOffset: lastVerified != null? 0: cursorOffset;
+	}
+
+	/**
+	 * Decides if the content of the file at path (relative to dir1) is to be compared, and from which offset.
+	 *
+	 * @return the offset to start comparing from, or -1 if the file is not to be compared.
+	 */
+	synchronized long verifyFrom(Path path) {
+		if(exhausted)
+			return -1;
+		if(cursor != null) {
+			int compared = PATH_ORDER.compare(path, cursor);
+			if(compared < 0 || compared == 0 && cursorOffset == 0)
+				return -1;
+		}
+		if(!hasRemaining()) {
+			exhausted = true;
+			return -1;
+		}
+		return path.equals(cursor)? cursorOffset: 0;
+	}
+
+	/** Charges a chunk compared, returns false if there's nothing left of the budget after it. */
+	synchronized boolean charge(long bytes, long nanos) {
+		bytesVerified += bytes;
+		nanosSpent += nanos;
+		return hasRemaining();
+	}
+
+	/** The comparison of the file at path stopped at offset because the budget ran out. */
+	synchronized void stop(Path path, long offset) {
+		exhausted = true;
+		stoppedAt = path;
+		stoppedOffset = offset;
+	}
+
+	/** The comparison of the file at path is over, unless it was stopped. */
+	synchronized void verified(Path path) {
+		if(path.equals(stoppedAt))
+			return;
+		filesVerified++;
+		if(lastVerified == null || PATH_ORDER.compare(path, lastVerified) > 0)
+			lastVerified = path;
+	}
+
+	private boolean hasRemaining() {
+		return bytesVerified < maxBytes && nanosSpent < maxNanos;
+	}
+
+}
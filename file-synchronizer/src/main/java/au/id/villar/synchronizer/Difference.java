@@ -0,0 +1,107 @@
+package au.id.villar.synchronizer;
+
+import java.nio.file.Path;
+import java.util.Objects;
+
+/**
+ * A difference found between both directories, as returned by {@link ChangesSearcher#differences()}. Every type
+ * matches one of the callbacks in {@link ChangesHandler} and carries the same arguments.
+ */
+public final class Difference {
+
+	public enum Type {
+
+		/** path1 is the existing path and path2 the missing one. */
+		MISSING_PATH,
+
+		DIFFERENT_FILES,
+
+		/** path1 and path2 are the existing paths, and the missing ones are given as well. */
+		MOVED_PATH,
+
+		/** path2 is always null. */
+		ERROR_FIXING_LAST_MODIFIED,
+
+		ERROR_COMPARING_FILES
+
+	}
+
+	private final Type type;
+	private final Path path1;
+	private final Path path2;
+	private final Exception error;
+	private final Path missingPath1;
+	private final Path missingPath2;
+
+	Difference(Type type, Path path1, Path path2, Exception error) {
+		this(type, path1, path2, error, null, null);
+	}
+
+	Difference(Type type, Path path1, Path path2, Exception error, Path missingPath1, Path missingPath2) {
+		this.type = type;
+		this.path1 = path1;
+		this.path2 = path2;
+		this.error = error;
+		this.missingPath1 = missingPath1;
+		this.missingPath2 = missingPath2;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public Path getPath1() {
+		return path1;
+	}
+
+	public Path getPath2() {
+		return path2;
+	}
+
+	/** Only present for the error types. */
+	public Exception getError() {
+		return error;
+	}
+
+	/** Only present for {@link Type#MOVED_PATH}: where path1 is missing in dir2. */
+	public Path getMissingPath1() {
+		return missingPath1;
+	}
+
+	/** Only present for {@link Type#MOVED_PATH}: where path2 is missing in dir1. */
+	public Path getMissingPath2() {
+		return missingPath2;
+	}
+
+	/** Invokes the callback of handler that corresponds to this difference. */
+	public void notify(ChangesHandler handler) {
+		switch(type) {
+			case MISSING_PATH: handler.missingPath(path1, path2); break;
+			case DIFFERENT_FILES: handler.differentFiles(path1, path2); break;
+			case MOVED_PATH: handler.movedPath(path1, missingPath1, path2, missingPath2); break;
+			case ERROR_FIXING_LAST_MODIFIED: handler.errorFixingLastModified(path1, error); break;
+			case ERROR_COMPARING_FILES: handler.errorComparingFiles(path1, path2, error); break;
+		}
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if(!(o instanceof Difference))
+			return false;
+		Difference other = (Difference)o;
+		return type == other.type && Objects.equals(path1, other.path1) && Objects.equals(path2, other.path2)
+				&& Objects.equals(error, other.error) && Objects.equals(missingPath1, other.missingPath1)
+				&& Objects.equals(missingPath2, other.missingPath2);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(type, path1, path2);
+	}
+
+	@Override
+	public String toString() {
+		return type + ": " + path1 + (path2 != null? ", " + path2: "") + (error != null? " (" + error + ")": "");
+	}
+
+}
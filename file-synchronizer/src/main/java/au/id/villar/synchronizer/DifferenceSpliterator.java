@@ -0,0 +1,230 @@
+package au.id.villar.synchronizer;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Walks both directories depth first, in name order, only as far as needed to produce the next difference. Each
+ * directory being compared is a frame holding the entries still to be visited; splitting hands the entries
+ * visited first to a new spliterator, so the encounter order is kept.
+ */
+class DifferenceSpliterator implements Spliterator<Difference> {
+
+	private final ChangesSearcher searcher;
+	private final BiConsumer<Path, Path> comparingListener;
+	private final MoveDetector moveDetector;
+	private final Progress progress;
+
+	private final List<Frame> frames = new ArrayList<>();
+	private final Deque<Difference> pending = new ArrayDeque<>();
+
+	private boolean closed;
+
+	/**
+	 * @param comparingListener receives every pair of paths as they are about to be compared.
+	 * @param detectMoves if true, missing paths are only produced once the walk is over, after matching them
+	 *                    with {@link MoveDetector}. Such a spliterator can't be split.
+	 */
+	DifferenceSpliterator(ChangesSearcher searcher, Path dir1, Path dir2, BiConsumer<Path, Path> comparingListener,
+			boolean detectMoves) throws IOException {
+		this.searcher = searcher;
+		this.comparingListener = comparingListener;
+		this.moveDetector = detectMoves? new MoveDetector(searcher): null;
+		this.progress = searcher.getProgress();
+		this.frames.add(new Frame(dir1, dir2, searcher.getFilesInDescendingOrder(dir1, true),
+				searcher.getFilesInDescendingOrder(dir2, false)));
+	}
+
+	private DifferenceSpliterator(DifferenceSpliterator parent) {
+		this.searcher = parent.searcher;
+		this.comparingListener = parent.comparingListener;
+		this.moveDetector = null;
+		this.progress = parent.progress;
+	}
+
+	@Override
+	public boolean tryAdvance(Consumer<? super Difference> action) {
+		try {
+			while(pending.isEmpty() && !closed && !searcher.isInterrupted() && advance());
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} catch (InterruptedException e) {
+			closed = true;
+		}
+		Difference difference = pending.poll();
+		if(difference == null)
+			return false;
+		action.accept(difference);
+		return true;
+	}
+
+	@Override
+	public Spliterator<Difference> trySplit() {
+		if(moveDetector != null || closed)
+			return null;
+		for(int index = 0; index < frames.size(); index++) {
+			Frame prefix = frames.get(index).splitPrefix();
+			if(prefix != null) {
+				DifferenceSpliterator split = new DifferenceSpliterator(this);
+				split.frames.add(prefix);
+				List<Frame> above = frames.subList(index + 1, frames.size());
+				split.frames.addAll(above);
+				above.clear();
+				split.pending.addAll(pending);
+				pending.clear();
+				return split;
+			}
+		}
+		return null;
+	}
+
+	@Override
+	public long estimateSize() {
+		return frames.isEmpty() && pending.isEmpty()? 0: Long.MAX_VALUE;
+	}
+
+	@Override
+	public int characteristics() {
+		return ORDERED | NONNULL;
+	}
+
+	/** Stops the walk, the differences not produced so far are discarded. */
+	void close() {
+		closed = true;
+		frames.clear();
+		pending.clear();
+	}
+
+	/** Visits one entry of the current directory, returns false once there is nothing else to visit. */
+	private boolean advance() throws IOException, InterruptedException {
+		if(frames.isEmpty()) {
+			if(moveDetector == null)
+				return false;
+			moveDetector.report(pending::add);
+			closed = true;
+			return true;
+		}
+
+		Frame frame = frames.get(frames.size() - 1);
+		List<Path> paths1 = frame.paths1;
+		List<Path> paths2 = frame.paths2;
+
+		if(paths1.size() > 0 && paths2.size() > 0) {
+			Path path1 = paths1.get(paths1.size() - 1);
+			Path path2 = paths2.get(paths2.size() - 1);
+
+			int compared = path1.getFileName().compareTo(path2.getFileName());
+			if(compared == 0) {
+				paths1.remove(paths1.size() - 1);
+				paths2.remove(paths2.size() - 1);
+				comparingListener.accept(path1, path2);
+
+				boolean path1IsDir = Files.isDirectory(path1);
+				boolean path2IsDir = Files.isDirectory(path2);
+				if(progress != null) {
+					if(path1IsDir && path2IsDir)
+						progress.directoryVisited(path1);
+					else if(path1IsDir == path2IsDir)
+						progress.entryVisited();
+					else
+						progress.subtreeSkipped(path1);
+				}
+
+				if(path1IsDir) {
+					if(path2IsDir) {
+						frames.add(new Frame(path1, path2, searcher.getFilesInDescendingOrder(path1, true),
+								searcher.getFilesInDescendingOrder(path2, false)));
+					} else {
+						pending.add(new Difference(Difference.Type.DIFFERENT_FILES, path1, path2, null));
+					}
+				} else if(path2IsDir || !searcher.filesAreEqual(path1, path2, pending::add)) {
+					pending.add(new Difference(Difference.Type.DIFFERENT_FILES, path1, path2, null));
+				}
+
+			} else if(compared > 0) {
+				paths2.remove(paths2.size() - 1);
+				missingPath(path2, frame.dir1.resolve(path2.getFileName()), false);
+			} else {
+				paths1.remove(paths1.size() - 1);
+				missingPath(path1, frame.dir2.resolve(path1.getFileName()), true);
+			}
+		} else if(paths1.size() > 0) {
+			Path path = paths1.remove(paths1.size() - 1);
+			missingPath(path, frame.dir2.resolve(path.getFileName()), true);
+		} else if(paths2.size() > 0) {
+			Path path = paths2.remove(paths2.size() - 1);
+			missingPath(path, frame.dir1.resolve(path.getFileName()), false);
+		} else {
+			frames.remove(frames.size() - 1);
+		}
+		return true;
+	}
+
+	private void missingPath(Path existingPath, Path missingPath, boolean existingInDir1) {
+		if(progress != null && existingInDir1)
+			progress.subtreeSkipped(existingPath);
+		if(moveDetector != null) {
+			moveDetector.addMissing(existingPath, missingPath, existingInDir1);
+		} else {
+			pending.add(new Difference(Difference.Type.MISSING_PATH, existingPath, missingPath, null));
+		}
+	}
+
+	private static class Frame {
+
+		final Path dir1;
+		final Path dir2;
+
+		/* entries still to be visited in descending order, so the next one is always the last */
+		final List<Path> paths1;
+		final List<Path> paths2;
+
+		Frame(Path dir1, Path dir2, List<Path> paths1, List<Path> paths2) {
+			this.dir1 = dir1;
+			this.dir2 = dir2;
+			this.paths1 = paths1;
+			this.paths2 = paths2;
+		}
+
+		/**
+		 * Removes the first half (by name) of the entries still to be visited and returns them in a new frame,
+		 * or returns null if there aren't at least two different names left.
+		 */
+		Frame splitPrefix() {
+			if(paths1.size() + paths2.size() < 2)
+				return null;
+			Path pivot = middleName();
+			if(pivot == null)
+				return null;
+			return new Frame(dir1, dir2, removeNamesBefore(paths1, pivot), removeNamesBefore(paths2, pivot));
+		}
+
+		private Path middleName() {
+			SortedSet<Path> names = new TreeSet<>();
+			for(Path path: paths1) names.add(path.getFileName());
+			for(Path path: paths2) names.add(path.getFileName());
+			if(names.size() < 2)
+				return null;
+			Iterator<Path> iterator = names.iterator();
+			for(int x = 0; x < names.size() / 2; x++)
+				iterator.next();
+			return iterator.next();
+		}
+
+		private static List<Path> removeNamesBefore(List<Path> paths, Path pivot) {
+			int index = paths.size();
+			while(index > 0 && paths.get(index - 1).getFileName().compareTo(pivot) < 0)
+				index--;
+			List<Path> tail = paths.subList(index, paths.size());
+			List<Path> removed = new ArrayList<>(tail);
+			tail.clear();
+			return removed;
+		}
+	}
+
+}
@@ -0,0 +1,226 @@
+package au.id.villar.synchronizer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Finds files with the same content, within and across several directories. Files are grouped by size first,
+ * then by a hash of their first {@link #PARTIAL_HASH_SIZE} bytes and only then by a hash of their whole content,
+ * so most files are never read completely. Hashes are computed in parallel and remembered for later queries,
+ * along with the size, last-modified date and file key the file had, so a file changed since is hashed again.
+ */
+public class DuplicatesFinder {
+
+	static final int PARTIAL_HASH_SIZE = 16 * 1024;
+
+	private static final String HASH_ALGORITHM = "SHA-256";
+
+	private final List<Path> roots;
+	private final Set<Path> pathsToSkip;
+	private final Map<Path, Map<Long, List<Path>>> filesBySizeByRoot = new HashMap<>();
+	private final Map<Path, Hash> partialHashes = new ConcurrentHashMap<>();
+	private final Map<Path, Hash> fullHashes = new ConcurrentHashMap<>();
+
+	private BufferPool bufferPool;
+
+	/**
+	 * @param pathsToSkip paths relative to every root which won't be considered, as with {@link ChangesSearcher}.
+	 */
+	public DuplicatesFinder(Collection<Path> roots, Collection<Path> pathsToSkip) {
+		if(roots == null || roots.isEmpty()) {
+			throw new IllegalArgumentException("at least one root is needed");
+		}
+		this.roots = new ArrayList<>(roots);
+		this.pathsToSkip = new HashSet<>();
+		if(pathsToSkip != null) {
+			for(Path root: roots) {
+				for(Path path: pathsToSkip) {
+					this.pathsToSkip.add(root.resolve(path));
+				}
+			}
+		}
+		this.bufferPool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE);
+	}
+
+	public void setBufferPool(BufferPool bufferPool) {
+		if(bufferPool == null) {
+			throw new IllegalArgumentException("buffer pool can't be null");
+		}
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Returns every set of two or more non-empty files having the same content. Each set is sorted, and sets are
+	 * sorted by their first path.
+	 */
+	public List<List<Path>> findDuplicates() throws IOException {
+		List<List<Path>> candidates = new ArrayList<>();
+		Map<Long, List<Path>> filesBySize = new HashMap<>();
+		for(Path root: roots) {
+			getFilesBySize(root).forEach((size, files) ->
+					filesBySize.computeIfAbsent(size, k -> new ArrayList<>()).addAll(files));
+		}
+		filesBySize.values().stream().filter(files -> files.size() > 1).forEach(candidates::add);
+
+		candidates = regroup(candidates, partialHashes, true);
+		candidates = regroup(candidates, fullHashes, false);
+
+		for(List<Path> files: candidates) {
+			Collections.sort(files);
+		}
+		candidates.sort(Comparator.comparing(files -> files.get(0)));
+		return candidates;
+	}
+
+	/**
+	 * Looks for a file under root (excluding file itself) with the same content as file.
+	 *
+	 * @return the file found or null if there isn't any.
+	 */
+	public Path findCopy(Path file, Path root) throws IOException {
+		long size = Files.size(file);
+		if(size == 0)
+			return null;
+		List<Path> sameSize = getFilesBySize(root).getOrDefault(size, Collections.emptyList());
+		for(Path candidate: sameSize) {
+			if(candidate.equals(file) || !Files.isRegularFile(candidate) || Files.size(candidate) != size)
+				continue;
+			if(hash(candidate, partialHashes, true).equals(hash(file, partialHashes, true))
+					&& hash(candidate, fullHashes, false).equals(hash(file, fullHashes, false))) {
+				return candidate;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Forgets what is known about path and everything under it, to be called when they are replaced or deleted.
+	 * Files are checked for changes before using what is known about them anyway, this only spares that check
+	 * and the memory.
+	 */
+	public void forget(Path path) {
+		Path forgotten = path.toAbsolutePath().normalize();
+		partialHashes.keySet().removeIf(file -> file.toAbsolutePath().normalize().startsWith(forgotten));
+		fullHashes.keySet().removeIf(file -> file.toAbsolutePath().normalize().startsWith(forgotten));
+	}
+
+	private List<List<Path>> regroup(List<List<Path>> groups, Map<Path, Hash> hashes, boolean partial) {
+		Map<Path, ByteBuffer> current = new ConcurrentHashMap<>();
+		groups.stream().flatMap(List::stream).collect(Collectors.toList()).parallelStream().forEach(file -> {
+			try {
+				current.put(file, hash(file, hashes, partial));
+			} catch (IOException e) {
+				// an unreadable file can't be shown to be a duplicate of anything
+			}
+		});
+
+		List<List<Path>> regrouped = new ArrayList<>();
+		for(List<Path> group: groups) {
+			Map<ByteBuffer, List<Path>> byHash = new HashMap<>();
+			for(Path file: group) {
+				ByteBuffer hash = current.get(file);
+				if(hash != null)
+					byHash.computeIfAbsent(hash, k -> new ArrayList<>()).add(file);
+			}
+			byHash.values().stream().filter(files -> files.size() > 1).forEach(regrouped::add);
+		}
+		return regrouped;
+	}
+
+	private ByteBuffer hash(Path file, Map<Path, Hash> hashes, boolean partial) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+		Hash hash = hashes.get(file);
+		if(hash != null && hash.matches(attributes))
+			return hash.value;
+		MessageDigest digest = newDigest();
+		ByteBuffer buffer = bufferPool.acquire();
+		long read = 0;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while(!partial || read < PARTIAL_HASH_SIZE) {
+				if(partial)
+					buffer.limit((int)Math.min(buffer.capacity(), PARTIAL_HASH_SIZE - read));
+				if(channel.read(buffer) == -1)
+					break;
+				buffer.flip();
+				read += buffer.remaining();
+				digest.update(buffer);
+				buffer.clear();
+			}
+		} finally {
+			bufferPool.release(buffer);
+		}
+		hash = new Hash(ByteBuffer.wrap(digest.digest()), attributes);
+		hashes.put(file, hash);
+		if(partial && read < PARTIAL_HASH_SIZE)
+			fullHashes.put(file, hash); // the whole file was read, so it's its full hash as well
+		return hash.value;
+	}
+
+	private synchronized Map<Long, List<Path>> getFilesBySize(Path root) throws IOException {
+		Map<Long, List<Path>> filesBySize = filesBySizeByRoot.get(root);
+		if(filesBySize == null) {
+			Map<Long, List<Path>> files = new HashMap<>();
+			Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+
+				@Override
+				public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+					return pathsToSkip.contains(dir)? FileVisitResult.SKIP_SUBTREE: FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+					if(attrs.isRegularFile() && attrs.size() > 0 && !pathsToSkip.contains(file))
+						files.computeIfAbsent(attrs.size(), k -> new ArrayList<>()).add(file);
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException e) {
+					return FileVisitResult.CONTINUE;
+				}
+			});
+			filesBySize = files;
+			filesBySizeByRoot.put(root, filesBySize);
+		}
+		return filesBySize;
+	}
+
+	private static class Hash {
+
+		final ByteBuffer value;
+		final long size;
+		final FileTime lastModified;
+		final Object fileKey;
+
+		Hash(ByteBuffer value, BasicFileAttributes attributes) {
+			this.value = value;
+			this.size = attributes.size();
+			this.lastModified = attributes.lastModifiedTime();
+			this.fileKey = attributes.fileKey();
+		}
+
+		/* a file replaced by a rename gets a new file key even if it keeps the size and date */
+		boolean matches(BasicFileAttributes attributes) {
+			return size == attributes.size() && lastModified.equals(attributes.lastModifiedTime())
+					&& Objects.equals(fileKey, attributes.fileKey());
+		}
+	}
+
+	private static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(HASH_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
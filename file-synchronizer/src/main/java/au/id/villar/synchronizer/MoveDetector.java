@@ -0,0 +1,155 @@
+package au.id.villar.synchronizer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+
+/**
+ * Collects the paths found in only one of the directories and, once the search is over, pairs those in dir1
+ * with those in dir2 having the same content, so they can be reported as moved instead of missing. Empty files,
+ * and directories without any data in them, are never paired: any two of them look the same.
+ */
+class MoveDetector {
+
+	private final ChangesSearcher searcher;
+	private final List<Missing> missingPaths = new ArrayList<>();
+
+	MoveDetector(ChangesSearcher searcher) {
+		this.searcher = searcher;
+	}
+
+	void addMissing(Path existingPath, Path missingPath, boolean existingInDir1) {
+		missingPaths.add(new Missing(existingPath, missingPath, existingInDir1));
+	}
+
+	void report(Consumer<Difference> differences) throws IOException, InterruptedException {
+		matchMoves();
+		for(Missing missing: missingPaths) {
+			if(missing.movedTo == null) {
+				differences.accept(new Difference(Difference.Type.MISSING_PATH,
+						missing.existingPath, missing.missingPath, null));
+			} else if(missing.inDir1) {
+				differences.accept(new Difference(Difference.Type.MOVED_PATH, missing.existingPath,
+						missing.movedTo.existingPath, null, missing.missingPath, missing.movedTo.missingPath));
+			}
+		}
+		missingPaths.clear();
+	}
+
+	private void matchMoves() throws IOException, InterruptedException {
+		boolean dirsInDir1 = false;
+		boolean dirsInDir2 = false;
+		for(Missing missing: missingPaths) {
+			missing.attributes = Files.readAttributes(missing.existingPath, BasicFileAttributes.class);
+			if(missing.attributes.isDirectory()) {
+				if(missing.inDir1) dirsInDir1 = true; else dirsInDir2 = true;
+			}
+		}
+		boolean matchDirs = dirsInDir1 && dirsInDir2;
+
+		Map<Signature, List<Missing>> candidates = new HashMap<>();
+		for(Missing missing: missingPaths) {
+			if(missing.inDir1 || (!matchDirs && missing.attributes.isDirectory()))
+				continue;
+			Signature signature = signature(missing);
+			if(signature.size > 0)
+				candidates.computeIfAbsent(signature, k -> new ArrayList<>()).add(missing);
+		}
+		if(candidates.isEmpty())
+			return;
+
+		for(Missing missing: missingPaths) {
+			if(!missing.inDir1 || (!matchDirs && missing.attributes.isDirectory()))
+				continue;
+			for(Missing candidate: candidates.getOrDefault(signature(missing), Collections.emptyList())) {
+				if(searcher.isInterrupted()) {
+					throw new InterruptedException();
+				}
+				if(candidate.movedTo == null && isSameContent(missing, candidate)) {
+					missing.movedTo = candidate;
+					candidate.movedTo = missing;
+					break;
+				}
+			}
+		}
+	}
+
+	private Signature signature(Missing missing) throws IOException {
+		if(missing.signature == null) {
+			if(missing.attributes.isDirectory()) {
+				long[] countAndSize = new long[2];
+				try (Stream<Path> stream = Files.walk(missing.existingPath)) {
+					stream.filter(Files::isRegularFile).forEach(p -> {
+						countAndSize[0]++;
+						countAndSize[1] += p.toFile().length();
+					});
+				}
+				missing.signature = new Signature(true, countAndSize[0], countAndSize[1]);
+			} else {
+				missing.signature = new Signature(false, 1, missing.attributes.size());
+			}
+		}
+		return missing.signature;
+	}
+
+	private boolean isSameContent(Missing missing1, Missing missing2) throws IOException, InterruptedException {
+		Path path1 = missing1.existingPath;
+		Path path2 = missing2.existingPath;
+		if(path1.startsWith(path2) || path2.startsWith(path1))
+			return false;
+		Object key1 = missing1.attributes.fileKey();
+		if(key1 != null && key1.equals(missing2.attributes.fileKey()))
+			return true;
+		return missing1.attributes.isDirectory()?
+				searcher.dirsAreEqual(path1, path2):
+				searcher.movedFilesAreEqual(path1, path2);
+	}
+
+	private static class Missing {
+
+		final Path existingPath;
+		final Path missingPath;
+		final boolean inDir1;
+
+		BasicFileAttributes attributes;
+		Signature signature;
+		Missing movedTo;
+
+		Missing(Path existingPath, Path missingPath, boolean inDir1) {
+			this.existingPath = existingPath;
+			this.missingPath = missingPath;
+			this.inDir1 = inDir1;
+		}
+	}
+
+	private static class Signature {
+
+		final boolean directory;
+		final long files;
+		final long size;
+
+		Signature(boolean directory, long files, long size) {
+			this.directory = directory;
+			this.files = files;
+			this.size = size;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if(!(o instanceof Signature))
+				return false;
+			Signature other = (Signature)o;
+			return directory == other.directory && files == other.files && size == other.size;
+		}
+
+		@Override
+		public int hashCode() {
+			return Objects.hash(directory, files, size);
+		}
+	}
+
+}
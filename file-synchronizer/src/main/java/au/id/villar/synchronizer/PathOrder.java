@@ -0,0 +1,24 @@
+package au.id.villar.synchronizer;
+
+import java.nio.file.Path;
+import java.util.Comparator;
+
+/**
+ * Orders relative paths name by name, which is the order in which {@link ChangesSearcher} finds the differences
+ * (a directory always goes before everything it contains).
+ */
+public class PathOrder implements Comparator<Path> {
+
+	@Override
+	public int compare(Path path1, Path path2) {
+		int count1 = path1.getNameCount();
+		int count2 = path2.getNameCount();
+		for(int x = 0; x < count1 && x < count2; x++) {
+			int compared = path1.getName(x).compareTo(path2.getName(x));
+			if(compared != 0)
+				return compared;
+		}
+		return Integer.compare(count1, count2);
+	}
+
+}
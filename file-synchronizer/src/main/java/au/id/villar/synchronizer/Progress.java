@@ -0,0 +1,205 @@
+package au.id.villar.synchronizer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Progress of a search, as returned by {@link ChangesSearcher#trackProgress()}. The total amount of work is
+ * estimated by counting the entries and bytes under dir1 in parallel with the search, so the estimate keeps
+ * growing until {@link #isEstimateComplete()}. All values can be read from any thread at any time.
+ */
+public class Progress {
+
+	/* marks in subtreeTotals for the directories the search got to before they were counted */
+	private static final long[] VISITED = new long[0];
+	private static final long[] SKIPPED = new long[0];
+
+	private final long startNanos = System.nanoTime();
+
+	private final LongAdder entries = new LongAdder();
+	private final LongAdder bytes = new LongAdder();
+	private final LongAdder estimatedEntries = new LongAdder();
+	private final LongAdder estimatedBytes = new LongAdder();
+	/*
+	 * totals of every directory counted, removed once the search gets to it as each is needed at most once. A
+	 * directory the search gets to first is marked instead, so the count doesn't leave its totals behind and
+	 * credits the ones of a skipped directory to the search once they are known
+	 */
+	private final Map<Path, long[]> subtreeTotals = new ConcurrentHashMap<>();
+
+	private volatile boolean estimateComplete;
+
+	Progress() {
+	}
+
+	public long getEntries() {
+		return entries.sum();
+	}
+
+	public long getBytes() {
+		return bytes.sum();
+	}
+
+	public long getEstimatedEntries() {
+		return estimatedEntries.sum();
+	}
+
+	public long getEstimatedBytes() {
+		return estimatedBytes.sum();
+	}
+
+	public boolean isEstimateComplete() {
+		return estimateComplete;
+	}
+
+	public long getElapsedNanos() {
+		return System.nanoTime() - startNanos;
+	}
+
+	/** Fraction (between 0 and 1) of the work done, by bytes if there are any and by entries otherwise. */
+	public double getFraction() {
+		long estimatedBytes = getEstimatedBytes();
+		long estimatedEntries = getEstimatedEntries();
+		double fraction = estimatedBytes > 0? (double)getBytes() / estimatedBytes:
+				estimatedEntries > 0? (double)getEntries() / estimatedEntries: 0;
+		return Math.min(fraction, 1);
+	}
+
+	public double getEntriesPerSecond() {
+		return getEntries() / seconds();
+	}
+
+	public double getBytesPerSecond() {
+		return getBytes() / seconds();
+	}
+
+	/** Estimated seconds until the search is over, or -1 if there isn't enough information yet. */
+	public long getRemainingSeconds() {
+		double fraction = getFraction();
+		if(!estimateComplete || fraction <= 0)
+			return -1;
+		return (long)(seconds() * (1 - fraction) / fraction);
+	}
+
+	void entryVisited() {
+		entries.increment();
+	}
+
+	/** Like {@link #entryVisited()}, for a directory whose content is going to be visited as well. */
+	void directoryVisited(Path dir) {
+		entries.increment();
+		if(subtreeTotals.putIfAbsent(dir, VISITED) != null)
+			subtreeTotals.remove(dir);
+	}
+
+	void bytesVisited(long count) {
+		bytes.add(count);
+	}
+
+	/** Accounts for the whole content of path, which won't be visited because it's missing in dir2. */
+	void subtreeSkipped(Path path) {
+		long[] totals = subtreeTotals.remove(path);
+		if(totals != null) {
+			entries.add(totals[0]);
+			bytes.add(totals[1]);
+		} else {
+			entries.increment();
+			try {
+				BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+				if(attributes.isRegularFile()) {
+					bytes.add(attributes.size());
+				} else if(attributes.isDirectory()) {
+					// not counted yet, what is under it is credited when it is
+					totals = subtreeTotals.putIfAbsent(path, SKIPPED);
+					if(totals != null) {
+						subtreeTotals.remove(path);
+						creditSkipped(totals);
+					}
+				}
+			} catch (IOException e) {
+				// it just won't be accounted for
+			}
+		}
+	}
+
+	/* the directory itself was already accounted for when it was skipped */
+	private void creditSkipped(long[] totals) {
+		entries.add(totals[0] - 1);
+		bytes.add(totals[1]);
+	}
+
+	void startEstimate(ChangesSearcher searcher, Path dir) {
+		ForkJoinPool.commonPool().execute(() -> {
+			try {
+				new CountTask(searcher, dir).invoke();
+			} finally {
+				estimateComplete = true;
+			}
+		});
+	}
+
+	private class CountTask extends RecursiveTask<long[]> {
+
+		private static final long serialVersionUID = 1L;
+
+		private final ChangesSearcher searcher;
+		private final Path dir;
+
+		CountTask(ChangesSearcher searcher, Path dir) {
+			this.searcher = searcher;
+			this.dir = dir;
+		}
+
+		@Override
+		protected long[] compute() {
+			long[] totals = new long[2];
+			List<CountTask> subtasks = new ArrayList<>();
+			try {
+				for(Path path: searcher.getFilesInDescendingOrder(dir, true)) {
+					if(searcher.isInterrupted())
+						break;
+					BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+					totals[0]++;
+					estimatedEntries.increment();
+					if(attributes.isDirectory()) {
+						CountTask subtask = new CountTask(searcher, path);
+						subtask.fork();
+						subtasks.add(subtask);
+					} else if(attributes.isRegularFile()) {
+						totals[1] += attributes.size();
+						estimatedBytes.add(attributes.size());
+					}
+				}
+			} catch (IOException e) {
+				// the estimate will be a bit lower
+			}
+			for(CountTask subtask: subtasks) {
+				long[] subtotals = subtask.join();
+				totals[0] += subtotals[0];
+				totals[1] += subtotals[1];
+			}
+			long[] dirTotals = {totals[0] + 1, totals[1]};
+			long[] mark = subtreeTotals.putIfAbsent(dir, dirTotals);
+			if(mark != null) {
+				subtreeTotals.remove(dir);
+				if(mark == SKIPPED)
+					creditSkipped(dirTotals);
+			}
+			return totals;
+		}
+	}
+
+	private double seconds() {
+		return Math.max(getElapsedNanos() / 1e9, 1e-3);
+	}
+
+}
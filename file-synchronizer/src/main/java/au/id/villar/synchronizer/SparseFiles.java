@@ -0,0 +1,30 @@
+package au.id.villar.synchronizer;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Helpers for handling the zero-filled regions of files, most of which are holes in sparse files.
+ */
+public final class SparseFiles {
+
+	/** Size of the regions a file is split into when deciding what can be left as a hole. */
+	public static final int BLOCK_SIZE = 4096;
+
+	private SparseFiles() {
+	}
+
+	/** Tells if every byte of buffer between from (inclusive) and to (exclusive) is zero, eight bytes at a time. */
+	public static boolean isZeroFilled(ByteBuffer buffer, int from, int to) {
+		int index = from;
+		for(; index + Long.BYTES <= to; index += Long.BYTES) {
+			if(buffer.getLong(index) != 0)
+				return false;
+		}
+		for(; index < to; index++) {
+			if(buffer.get(index) != 0)
+				return false;
+		}
+		return true;
+	}
+
+}
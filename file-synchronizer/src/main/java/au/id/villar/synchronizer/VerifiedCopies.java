@@ -0,0 +1,143 @@
+package au.id.villar.synchronizer;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Copies made from one directory to the other, with a digest of what was read from the origin while copying.
+ * The first {@link ChangesSearcher} comparing the content of such a copy after it was made reads only the copy
+ * and checks it against the digest, instead of reading both files, as long as both keep the size and
+ * last-modified date they had after the copy. The record is used up by that, so any later search compares them
+ * as usual. Kept in a file between runs, one line per copy.
+ */
+public class VerifiedCopies {
+
+	public static final String DIGEST_ALGORITHM = "SHA-256";
+
+	private final Path file;
+	private final Map<Path, Entry> entries = new ConcurrentHashMap<>();
+
+	/** Loads the copies recorded in file, if it exists. */
+	public VerifiedCopies(Path file) throws IOException {
+		this.file = file;
+		if(Files.exists(file)) {
+			for(String line: Files.readAllLines(file, StandardCharsets.UTF_8)) {
+				String[] fields = line.split("\t", 4);
+				if(fields.length != 4 || fields[2].length() % 2 != 0)
+					continue;
+				try {
+					entries.put(Paths.get(unescape(fields[3])),
+							new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), fromHex(fields[2])));
+				} catch (NumberFormatException e) {
+					// a damaged line only means that file will be compared again
+				}
+			}
+		}
+	}
+
+	public static MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance(DIGEST_ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * @param copy the file written by the copy.
+	 * @param lastModified last-modified date of the copy in milliseconds, which is the one of the origin.
+	 * @param digest digest of the content of the origin, computed with {@link #DIGEST_ALGORITHM}.
+	 */
+	public void record(Path copy, long size, long lastModified, byte[] digest) {
+		entries.put(key(copy), new Entry(size, lastModified, digest.clone()));
+	}
+
+	/**
+	 * Returns the digest recorded for copy if it was recorded with the given size and date, or null otherwise.
+	 * The record is dropped either way, so each copy spares a single comparison.
+	 */
+	public byte[] take(Path copy, long size, long lastModified) {
+		Entry entry = entries.remove(key(copy));
+		return entry != null && entry.size == size && entry.lastModified == lastModified? entry.digest: null;
+	}
+
+	/** Writes the copies recorded to the file given to the constructor, replacing it as a whole. */
+	public void save() throws IOException {
+		List<String> lines = new ArrayList<>();
+		for(Map.Entry<Path, Entry> entry: entries.entrySet()) {
+			Entry value = entry.getValue();
+			lines.add(value.size + "\t" + value.lastModified + "\t" + toHex(value.digest) + "\t"
+					+ escape(entry.getKey().toString()));
+		}
+		Files.createDirectories(file.toAbsolutePath().getParent());
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.write(temp, lines, StandardCharsets.UTF_8);
+		Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static Path key(Path copy) {
+		return copy.toAbsolutePath().normalize();
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for(byte b: bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	private static byte[] fromHex(String hex) {
+		byte[] bytes = new byte[hex.length() / 2];
+		for(int x = 0; x < bytes.length; x++) {
+			bytes[x] = (byte)Integer.parseInt(hex.substring(x * 2, x * 2 + 2), 16);
+		}
+		return bytes;
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\n", "\\n");
+	}
+
+	private static String unescape(String value) {
+		StringBuilder builder = new StringBuilder(value.length());
+		for(int x = 0; x < value.length(); x++) {
+			char ch = value.charAt(x);
+			if(ch == '\\' && x + 1 < value.length()) {
+				ch = value.charAt(++x);
+				builder.append(ch == 'n'? '\n': ch);
+			} else {
+				builder.append(ch);
+			}
+		}
+		return builder.toString();
+	}
+
+	private static class Entry {
+
+		final long size;
+		final long lastModified;
+		final byte[] digest;
+
+		Entry(long size, long lastModified, byte[] digest) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.digest = digest;
+		}
+	}
+
+}
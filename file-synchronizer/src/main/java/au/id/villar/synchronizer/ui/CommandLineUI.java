@@ -1,15 +1,25 @@
 package au.id.villar.synchronizer.ui;
 
-import au.id.villar.synchronizer.ChangesHandler;
+import au.id.villar.synchronizer.BufferPool;
 import au.id.villar.synchronizer.ChangesSearcher;
+import au.id.villar.synchronizer.ContentBudget;
+import au.id.villar.synchronizer.DuplicatesFinder;
 import au.id.villar.synchronizer.Level;
+import au.id.villar.synchronizer.VerifiedCopies;
 
 import java.io.IOException;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.TimeUnit;
 
 public class CommandLineUI {
 
@@ -18,17 +28,57 @@ public class CommandLineUI {
 	 * <p><b>--path1=<i>path1</i></b> <i>path1</i> to synchronize with <i>path2</i>. Must be a directory.</p>
 	 * <p><b>--path2=<i>path2</i></b> <i>path2</i> to synchronize with <i>path1</i>. Must be a directory..</p>
 	 * <p><b>--verbose</b><br>Prints more information.</p>
+	 * <p><b>--progress</b><br>shows on the standard error how much of the search is done, how fast it goes and
+	 * how long it's expected to take. The total is estimated by counting what is in <i>path1</i> while the
+	 * search runs. Best used with <b>--info</b>, as the line showing it is rewritten every second.</p>
 	 * <p><b>--info</b><br>if this parameter is provided, then no changes will be performed,
 	 * just information will be shown.</p>
+	 * <p><b>--format=<i>format</i></b><br>how the information is shown when <b>--info</b> is given. Possible
+	 * values are: text (meant to be read by a person, this is the default) and jsonl (one JSON object per line
+	 * for every difference found).</p>
 	 * <p><b>--fixLastModified</b><br>If it turns out two files are identical and they just differ by
 	 * their last modified date, the date for the file belonging two the second path specified will be
 	 * updated with the date of the file that belongs to the first path.</p>
+	 * <p><b>--detectMoves</b><br>Paths found only in one directory are matched against those found only in the
+	 * other one, the ones having the same size, last-modified date and content are reported as moved so they can
+	 * be renamed instead of copied. Empty files are never taken as moved.</p>
+	 * <p><b>--duplicates</b><br>instead of synchronizing, shows the sets of files having the same content,
+	 * within each path and across both paths.</p>
+	 * <p><b>--dedup</b><br>before copying a file from one path to the other, a file with the same content is
+	 * looked for in the destination path, and if found, it's hard linked instead of copying the origin, so both
+	 * share any later change. Looking for it reads the whole origin, so this saves writing the data and the space
+	 * it takes, not reading it.</p>
+	 * <p><b>--verifyCopies</b><br>every copied file is read back once written and checked against a digest of
+	 * what was read from the origin. Files passing the check are recorded with that digest in <b>--stateDir</b>
+	 * (per shard, with <b>--shard</b>), and the next run given this option comparing contents reads only the
+	 * copy and checks it against the digest, as long as the size and last-modified date of both files don't
+	 * change. Runs after that compare them as usual.</p>
 	 * <p><b>--exclude=<i>path</i></b><br>exclude <i>path</i> from synchronization. <i>path</i> is relative to
 	 * both directories.</p>
 	 * <p><b>--level=<i>level</i></b><br>level to decide if two files are equal. Possible values are: SIZE
 	 * (two files are considered the same if the have the same size) LAST_MODIFIED (two files are considered equal
 	 * if they have same size and same last-modified date) and CONTENT (the actual content of the files are
 	 * compared, this is the default)</p>
+	 * <p><b>--timeBudget=<i>seconds</i></b><br>only with level CONTENT, stops comparing file contents once
+	 * <i>seconds</i> have been spent on the files compared, opening and closing them included (going over by one
+	 * buffer at most), and checks the remaining files as with LAST_MODIFIED. Where the comparison stopped, even in
+	 * the middle of a file, is kept in <b>--stateDir</b>, and the next run goes on from there, so successive runs
+	 * verify the whole tree a slice at a time.</p>
+	 * <p><b>--byteBudget=<i>bytes</i></b><br>like <b>--timeBudget</b>, but stops comparing file contents after
+	 * reading <i>bytes</i> of each side. Both can be given, whatever runs out first applies.</p>
+	 * <p><b>--shards=<i>count</i></b><br>splits the search in <i>count</i> shards, each one searched by its own
+	 * process, and shows the differences found by all of them merged in the same order a single process would
+	 * have found them. Implies <b>--info</b> and <b>--format=jsonl</b>, and can't be used with
+	 * <b>--detectMoves</b>.</p>
+	 * <p><b>--shard=<i>index</i>/<i>count</i></b><br>only searches the shard <i>index</i> (from 0 to
+	 * <i>count</i> - 1) out of <i>count</i>, so shards can be searched separately (even from different machines
+	 * sharing both paths) and their reports merged with <b>--merge</b>.</p>
+	 * <p><b>--merge=<i>file1</i>,<i>file2</i>...</b><br>instead of searching, merges the reports written with
+	 * <b>--info --format=jsonl --shard=...</b> in the given files into a single report.</p>
+	 * <p><b>--stateDir=<i>dir</i></b><br>directory where the state kept between runs (like the journal used to
+	 * recover interrupted copies) is stored. Default is .file-synchronizer in the user's home.</p>
+	 * <p><b>--bufferSize=<i>bytes</i></b><br>size of the buffers used to compare and copy files, files smaller
+	 * than this are read at once. Default is 1 MB.</p>
 	 *
 	 * @param args array of values interpreted as specified above.
 	 * @throws IOException
@@ -40,19 +90,42 @@ public class CommandLineUI {
 
 		boolean verbose = false;
 		boolean info = false;
+		boolean showProgress = false;
+		boolean jsonLines = false;
 		boolean fixLastModified = false;
+		boolean detectMoves = false;
+		boolean duplicates = false;
+		boolean verifyCopies = false;
+		boolean dedup = false;
+		int shards = 1;
+		int shardIndex = 0;
+		int shardCount = 1;
+		List<Path> reportsToMerge = null;
+		List<String> workerArgs = new ArrayList<>();
 		boolean help = false;
 		Set<Path> pathsToSkip = new HashSet<>();
 		Path path1 = null;
 		Path path2 = null;
 		Level level = Level.CONTENT;
+		int bufferSize = BufferPool.DEFAULT_BUFFER_SIZE;
+		Path stateDir = StateFiles.DEFAULT_STATE_DIR;
+		long timeBudget = Long.MAX_VALUE;
+		long byteBudget = Long.MAX_VALUE;
 
 		for(String arg: args) {
+			if(!arg.startsWith("--shards=")) {
+				workerArgs.add(arg);
+			}
 			switch(arg) {
 				case "--verbose": verbose = true; break;
 				case "--info": info = true; break;
+				case "--progress": showProgress = true; break;
 				case "--help":case "-h": help = true; break;
 				case "--fixLastModified": fixLastModified = true; break;
+				case "--detectMoves": detectMoves = true; break;
+				case "--duplicates": duplicates = true; break;
+				case "--verifyCopies": verifyCopies = true; break;
+				case "--dedup": dedup = true; break;
 				default:
 					if(arg.startsWith("--exclude=")) {
 						pathsToSkip.add(Paths.get(arg.substring("--exclude=".length())));
@@ -63,6 +136,57 @@ public class CommandLineUI {
 							printUsage(out);
 							throw e;
 						}
+					} else if(arg.startsWith("--bufferSize=")) {
+						try {
+							bufferSize = Integer.parseInt(arg.substring("--bufferSize=".length()));
+						} catch (NumberFormatException e) {
+							printUsage(out);
+							throw e;
+						}
+					} else if(arg.startsWith("--timeBudget=")) {
+						try {
+							timeBudget = TimeUnit.SECONDS.toNanos(Long.parseLong(arg.substring("--timeBudget=".length())));
+						} catch (NumberFormatException e) {
+							printUsage(out);
+							throw e;
+						}
+					} else if(arg.startsWith("--byteBudget=")) {
+						try {
+							byteBudget = Long.parseLong(arg.substring("--byteBudget=".length()));
+						} catch (NumberFormatException e) {
+							printUsage(out);
+							throw e;
+						}
+					} else if(arg.startsWith("--format=")) {
+						String format = arg.substring("--format=".length());
+						if(!format.equals("text") && !format.equals("jsonl")) {
+							printUsage(out);
+							throw new IllegalArgumentException("Unknown format: " + format);
+						}
+						jsonLines = format.equals("jsonl");
+					} else if(arg.startsWith("--shards=")) {
+						try {
+							shards = Integer.parseInt(arg.substring("--shards=".length()));
+						} catch (NumberFormatException e) {
+							printUsage(out);
+							throw e;
+						}
+					} else if(arg.startsWith("--shard=")) {
+						String[] shard = arg.substring("--shard=".length()).split("/");
+						try {
+							shardIndex = Integer.parseInt(shard[0]);
+							shardCount = Integer.parseInt(shard[1]);
+						} catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+							printUsage(out);
+							throw new IllegalArgumentException("Invalid shard: " + arg);
+						}
+					} else if(arg.startsWith("--merge=")) {
+						reportsToMerge = new ArrayList<>();
+						for(String report: arg.substring("--merge=".length()).split(",")) {
+							reportsToMerge.add(Paths.get(report));
+						}
+					} else if(arg.startsWith("--stateDir=")) {
+						stateDir = Paths.get(arg.substring("--stateDir=".length()));
 					} else if(arg.startsWith("--path1=")) {
 						path1 = Paths.get(arg.substring("--path1=".length()));
 					} else if(arg.startsWith("--path2=")) {
@@ -79,21 +203,182 @@ public class CommandLineUI {
 			return;
 		}
 
-		ChangesHandler handler = info?
-				new InfoHandler(verbose, System.out, path1, path2):
-				new SyncHandler(verbose, System.in, System.out, path1, path2);
+		if((timeBudget != Long.MAX_VALUE || byteBudget != Long.MAX_VALUE) && level != Level.CONTENT) {
+			// with any other level no content is compared, so the budget never runs out and the cursor is lost
+			printUsage(out);
+			throw new IllegalArgumentException("--timeBudget and --byteBudget can only be used with level CONTENT");
+		}
+
+		if(reportsToMerge != null) {
+			ShardCoordinator.merge(reportsToMerge, out);
+			return;
+		}
+
+		if(shards > 1) {
+			if(detectMoves) {
+				printUsage(out);
+				throw new IllegalArgumentException("--shards can't be used with --detectMoves");
+			}
+			workerArgs.add("--info");
+			workerArgs.add("--format=jsonl");
+			ShardCoordinator.runShards(shards, workerArgs, out);
+			return;
+		}
+
+		BufferPool bufferPool = new BufferPool(bufferSize);
+
+		if(duplicates) {
+			printDuplicates(out, path1, path2, pathsToSkip, bufferPool);
+			return;
+		}
+
+		StateFiles stateFiles = new StateFiles(stateDir, path1, path2);
+		CommandLineUIHandler handler = info?
+				new InfoHandler(verbose, jsonLines, System.out, path1, path2):
+				new SyncHandler(verbose, System.in, System.out, path1, path2, bufferPool, stateFiles);
 
 		ChangesSearcher searcher =
 				new ChangesSearcher(handler, path1, path2, pathsToSkip.size() > 0? pathsToSkip: null);
 		searcher.setLevel(level);
 		searcher.setFixLastModified(fixLastModified);
+		searcher.setBufferPool(bufferPool);
+		searcher.setDetectMoves(detectMoves);
+		searcher.setShard(shardIndex, shardCount);
+
+		Path cursorFile = null;
+		ContentBudget contentBudget = null;
+		if(timeBudget != Long.MAX_VALUE || byteBudget != Long.MAX_VALUE) {
+			cursorFile = stateFiles.cursor(shardIndex, shardCount);
+			contentBudget = readContentBudget(cursorFile, timeBudget, byteBudget);
+			searcher.setContentBudget(contentBudget);
+		}
+
+		VerifiedCopies verifiedCopies =
+				verifyCopies? new VerifiedCopies(stateFiles.verifiedCopies(shardIndex, shardCount)): null;
+		searcher.setVerifiedCopies(verifiedCopies);
+
+		if(handler instanceof SyncHandler) {
+			SyncHandler syncHandler = (SyncHandler)handler;
+			syncHandler.recoverInterruptedCopies();
+			if(verifiedCopies != null) {
+				syncHandler.setVerifiedCopies(verifiedCopies);
+			}
+			if(dedup) {
+				DuplicatesFinder finder = new DuplicatesFinder(Arrays.asList(path1, path2), pathsToSkip);
+				finder.setBufferPool(bufferPool);
+				syncHandler.setDuplicatesFinder(finder);
+			}
+		}
+
+		ProgressReporter progressReporter =
+				showProgress? new ProgressReporter(searcher.trackProgress(), System.err): null;
+		search(searcher, handler, progressReporter);
+
+		if(verifiedCopies != null) {
+			verifiedCopies.save();
+		}
+		if(contentBudget != null) {
+			writeCursor(cursorFile, contentBudget);
+		}
+
+		if(verbose) {
+			PrintStream statistics = jsonLines? System.err: out;
+			statistics.printf("BUFFER POOL:   hit rate %.1f%%, %d bytes outstanding%n",
+					bufferPool.getHitRate() * 100, bufferPool.getBytesOutstanding());
+			if(handler instanceof SyncHandler) {
+				statistics.printf("SPARSE:        %d b left as holes in copies instead of written%n",
+						((SyncHandler)handler).getSparseBytesSkipped());
+			}
+			if(contentBudget != null) {
+				statistics.printf("BUDGET:        content of %d files (%d b) compared, %s%n",
+						contentBudget.getFilesVerified(), contentBudget.getBytesVerified(),
+						!contentBudget.isExhausted()? "end of the tree reached, next run starts over":
+						contentBudget.getNextCursorOffset() > 0?
+								"next run goes on from byte " + contentBudget.getNextCursorOffset() + " of "
+										+ contentBudget.getNextCursor():
+								"next run goes on after " + contentBudget.getNextCursor());
+			}
+		}
 
-		searcher.search();
+	}
 
+	/**
+	 * Runs the search and then closes handler and progressReporter (if not null) whatever happens. If the search
+	 * fails, a failure closing handler is added as suppressed to the exception thrown by the search.
+	 */
+	static void search(ChangesSearcher searcher, CommandLineUIHandler handler, ProgressReporter progressReporter)
+			throws IOException, InterruptedException {
+		Exception failure = null;
+		try {
+			searcher.search();
+		} catch (IOException | InterruptedException | RuntimeException e) {
+			failure = e;
+			throw e;
+		} finally {
+			if(progressReporter != null)
+				progressReporter.close();
+			try {
+				handler.close();
+			} catch (RuntimeException e) {
+				if(failure == null)
+					throw e;
+				failure.addSuppressed(e);
+			}
+		}
+	}
 
+	/* a cursor is kept as how much of the file at the cursor was verified, a new line and the cursor itself */
+	private static ContentBudget readContentBudget(Path file, long timeBudget, long byteBudget) throws IOException {
+		if(Files.exists(file)) {
+			String cursor = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+			int newLine = cursor.indexOf('\n');
+			if(newLine > 0 && newLine < cursor.length() - 1) {
+				try {
+					return new ContentBudget(Paths.get(cursor.substring(newLine + 1)),
+							Long.parseLong(cursor.substring(0, newLine)), timeBudget, byteBudget);
+				} catch (IllegalArgumentException e) {
+					// a damaged cursor only means starting over
+				}
+			}
+		}
+		return new ContentBudget(null, 0, timeBudget, byteBudget);
 	}
 
+	private static void writeCursor(Path file, ContentBudget contentBudget) throws IOException {
+		Path cursor = contentBudget.getNextCursor();
+		Files.createDirectories(file.toAbsolutePath().getParent());
+		Path temp = file.resolveSibling(file.getFileName() + ".tmp");
+		Files.write(temp, (cursor != null? contentBudget.getNextCursorOffset() + "\n" + cursor: "")
+				.getBytes(StandardCharsets.UTF_8));
+		Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private static void printDuplicates(PrintStream out, Path path1, Path path2, Set<Path> pathsToSkip,
+			BufferPool bufferPool) throws IOException {
+		List<Path> roots = new ArrayList<>();
+		if(path1 != null) roots.add(path1);
+		if(path2 != null) roots.add(path2);
+		for(Path root: roots) {
+			if(!Files.isDirectory(root)) {
+				throw new IllegalArgumentException("directory path should be an actual directory");
+			}
+		}
 
+		DuplicatesFinder finder = new DuplicatesFinder(roots, pathsToSkip);
+		finder.setBufferPool(bufferPool);
+		for(List<Path> files: finder.findDuplicates()) {
+			boolean inPath1 = false;
+			boolean inPath2 = false;
+			for(Path file: files) {
+				if(path1 != null && file.startsWith(path1)) inPath1 = true; else inPath2 = true;
+			}
+			out.printf("DUPLICATES:    %d files of %d b (%s)%n", files.size(), Files.size(files.get(0)),
+					inPath1 && inPath2? "across both paths": inPath1? "in path1": "in path2");
+			for(Path file: files) {
+				out.printf("    %s%n", file);
+			}
+		}
+	}
 
 	private static void printUsage(PrintStream out) {
 		out.printf("USAGE: <classNameOrCommandName> [options] path1=path1 path2=path2%n%n" +
@@ -101,17 +386,66 @@ public class CommandLineUI {
 				"--path1=path1      path1 to synchronize with path2. Must be a directory.%n%n" +
 				"--path2=path2      path2 to synchronize with path1. Must be a directory.%n%n" +
 				"--verbose          Prints more information.%n%n" +
+				"--progress         shows on the standard error how much of the search is done, how fast it goes%n" +
+				"                   and how long it's expected to take. The total is estimated by counting what%n" +
+				"                   is in path1 while the search runs. Best used with --info, as the line%n" +
+				"                   showing it is rewritten every second.%n%n" +
 				"--info             if this parameter is provided, then no changes will be performed,%n" +
 				"                   just information will be shown.%n%n" +
+				"--format=format    how the information is shown when --info is given. Possible values are: text%n" +
+				"                   (meant to be read by a person, this is the default) and jsonl (one JSON%n" +
+				"                   object per line for every difference found).%n%n" +
 				"--fixLastModified  If it turns out two files are identical and they just differ by their%n" +
 				"                   last modified date, the date for the file belonging two the second path%n" +
 				"                   specified will be updated with the date of the file that belongs to the%n" +
 				"                   first path.%n%n" +
+				"--detectMoves      Paths found only in one directory are matched against those found only in%n" +
+				"                   the other one, the ones having the same size, last-modified date and%n" +
+				"                   content are reported as moved so they can be renamed instead of copied.%n" +
+				"                   Empty files are never taken as moved.%n%n" +
+				"--duplicates       instead of synchronizing, shows the sets of files having the same content,%n" +
+				"                   within each path and across both paths.%n%n" +
+				"--dedup            before copying a file from one path to the other, a file with the same%n" +
+				"                   content is looked for in the destination path, and if found, it's hard%n" +
+				"                   linked instead of copying the origin, so both share any later change.%n" +
+				"                   Looking for it reads the whole origin, so this saves writing the data and%n" +
+				"                   the space it takes, not reading it.%n%n" +
+				"--verifyCopies     every copied file is read back once written and checked against a digest of%n" +
+				"                   what was read from the origin. Files passing the check are recorded with%n" +
+				"                   that digest in --stateDir (per shard, with --shard), and the next run given%n" +
+				"                   this option comparing contents reads only the copy and checks it against%n" +
+				"                   the digest, as long as the size and last-modified date of both files don't%n" +
+				"                   change. Runs after that compare them as usual.%n%n" +
 				"--exclude=path     exclude path from synchronization. path is relative to both directories.%n%n" +
 				"--level=level      level to decide if two files are equal. Possible values are: SIZE (two files%n" +
 				"                   are considered the same if the have the same size) LAST_MODIFIED (two files%n" +
 				"                   are considered equal if they have same size and same last-modified date) and%n" +
 				"                   CONTENT (the actual content of the files are compared, this is the default)%n%n" +
+				"--timeBudget=seconds%n" +
+				"                   only with level CONTENT, stops comparing file contents once seconds have been%n" +
+				"                   spent on the files compared, opening and closing them included (going over%n" +
+				"                   by one buffer at most), and checks the remaining files as with LAST_MODIFIED.%n" +
+				"                   Where the comparison stopped, even in the middle of a file, is kept in%n" +
+				"                   --stateDir, and the next run goes on from there, so successive runs verify%n" +
+				"                   the whole tree a slice at a time.%n%n" +
+				"--byteBudget=bytes like --timeBudget, but stops comparing file contents after reading bytes of%n" +
+				"                   each side. Both can be given, whatever runs out first applies.%n%n" +
+				"--shards=count     splits the search in count shards, each one searched by its own process, and%n" +
+				"                   shows the differences found by all of them merged in the same order a single%n" +
+				"                   process would have found them. Implies --info and --format=jsonl, and can't%n" +
+				"                   be used with --detectMoves.%n%n" +
+				"--shard=index/count%n" +
+				"                   only searches the shard index (from 0 to count - 1) out of count, so shards%n" +
+				"                   can be searched separately (even from different machines sharing both paths)%n" +
+				"                   and their reports merged with --merge.%n%n" +
+				"--merge=file1,file2...%n" +
+				"                   instead of searching, merges the reports written with --info --format=jsonl%n" +
+				"                   --shard=... in the given files into a single report.%n%n" +
+				"--stateDir=dir     directory where the state kept between runs (like the journal used to recover%n" +
+				"                   interrupted copies) is stored. Default is .file-synchronizer in the user's%n" +
+				"                   home.%n%n" +
+				"--bufferSize=bytes size of the buffers used to compare and copy files, files smaller than this%n" +
+				"                   are read at once. Default is 1 MB.%n%n" +
 				"-h, --help         prints this and finishes.%n%n");
 	}
 
@@ -6,8 +6,9 @@ import java.io.IOException;
 import java.io.PrintStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.text.SimpleDateFormat;
-import java.util.Date;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
 
 abstract class CommandLineUIHandler implements ChangesHandler {
 
@@ -16,7 +17,8 @@ abstract class CommandLineUIHandler implements ChangesHandler {
 	protected final Path dir2;
 	protected boolean verbose;
 
-	private final SimpleDateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+	private static final DateTimeFormatter DATE_FORMAT =
+			DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss").withZone(ZoneId.systemDefault());
 
 	protected CommandLineUIHandler(boolean verbose, PrintStream out, Path dir1, Path dir2) {
 		this.verbose = verbose;
@@ -25,6 +27,11 @@ abstract class CommandLineUIHandler implements ChangesHandler {
 		this.dir2 = dir2;
 	}
 
+	/** Called once the search is over, so any pending output can be written. */
+	public void close() {
+		out.flush();
+	}
+
 	@Override
 	public void comparing(Path path1, Path path2) {
 		if(verbose)
@@ -37,6 +44,9 @@ abstract class CommandLineUIHandler implements ChangesHandler {
 	@Override
 	public abstract void differentFiles(Path path1, Path path2);
 
+	@Override
+	public abstract void movedPath(Path path1, Path missingPath1, Path path2, Path missingPath2);
+
 	@Override
 	public void errorFixingLastModified(Path path, Exception e) {
 		out.printf("ERROR fixing last modified time: %s%n", e.getMessage());
@@ -72,12 +82,28 @@ abstract class CommandLineUIHandler implements ChangesHandler {
 		}
 	}
 
+	protected void movedPath(Path path1, Path path2, boolean verbose) {
+		out.printf("MOVED PATH:    %s    (named %s in %s)%n", getRelativePath(path1), getRelativePath(path2), dir2);
+		if(verbose) {
+			out.printf("%n    PATH 1:%n");
+			printFileInfo(path1);
+			out.printf("%n    PATH 2:%n");
+			printFileInfo(path2);
+			out.println();
+		}
+	}
+
 	protected Path getRelativePath(Path path) {
-		return (path.startsWith(dir1)?
+		return getRoot(path).relativize(path);
+	}
+
+	/** Returns the directory (dir1 or dir2) path belongs to. */
+	protected Path getRoot(Path path) {
+		return path.startsWith(dir1)?
 				(path.startsWith(dir2)?
 						(dir1.startsWith(dir2)? dir1: dir2):
 						dir1):
-				dir2).relativize(path);
+				dir2;
 	}
 
 	protected void printFileInfo(Path path) {
@@ -85,13 +111,11 @@ abstract class CommandLineUIHandler implements ChangesHandler {
 		String size;
 
 		try {
-			lastModified = dateFormat.format(new Date(Files.getLastModifiedTime(path).toMillis()));
+			BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+			lastModified = DATE_FORMAT.format(attributes.lastModifiedTime().toInstant());
+			size = attributes.size() + " b";
 		} catch (IOException e) {
 			lastModified = "N/A";
-		}
-		try {
-			size = String.valueOf(Files.size(path)) + " b";
-		} catch (IOException e) {
 			size = "N/A";
 		}
 
@@ -0,0 +1,138 @@
+package au.id.villar.synchronizer.ui;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Write-ahead journal for the copies done by {@link FileCopier}. Every copy is recorded as BEGIN before anything
+ * is written, as WRITTEN once the temporary copy is safely on disk and as DONE once it has been renamed into
+ * place, and the journal is emptied each time every copy begun is DONE. Records are not synced one by one:
+ * {@link #sync()} is called once for a whole group of them, and only WRITTEN needs to be on disk before the
+ * copies it records are renamed. A lost BEGIN only leaves a temporary file behind, a lost DONE only makes the
+ * recovery find the temporary file gone.
+ */
+class CopyJournal {
+
+	private static final String BEGIN = "BEGIN";
+	private static final String WRITTEN = "WRITTEN";
+	private static final String DONE = "DONE";
+
+	private final Path file;
+	private FileChannel channel;
+	private int open;
+
+	CopyJournal(Path file) {
+		this.file = file;
+	}
+
+	void begin(Path temp, Path destination) throws IOException {
+		append(BEGIN, temp, destination);
+		open++;
+	}
+
+	void written(Path temp, Path destination) throws IOException {
+		append(WRITTEN, temp, destination);
+	}
+
+	void done(Path temp, Path destination) throws IOException {
+		append(DONE, temp, destination);
+		if(open > 0)
+			open--;
+		if(open == 0)
+			channel.truncate(0);
+	}
+
+	/** Makes every record appended so far durable. */
+	void sync() throws IOException {
+		if(channel != null)
+			channel.force(false);
+	}
+
+	/** Returns the operations not DONE in a previous run, in the order they were started. */
+	List<Entry> pending() throws IOException {
+		Map<String, Entry> entries = new LinkedHashMap<>();
+		if(Files.exists(file)) {
+			for(String line: Files.readAllLines(file, StandardCharsets.UTF_8)) {
+				String[] fields = line.split("\t", -1);
+				if(fields.length != 3)
+					continue; // half written record, the operation it belongs to never went further
+				Entry entry = new Entry(Paths.get(unescape(fields[1])), Paths.get(unescape(fields[2])),
+						WRITTEN.equals(fields[0]));
+				if(DONE.equals(fields[0])) {
+					entries.remove(fields[1]);
+				} else {
+					entries.put(fields[1], entry);
+				}
+			}
+		}
+		return new ArrayList<>(entries.values());
+	}
+
+	void clear() throws IOException {
+		close();
+		Files.deleteIfExists(file);
+	}
+
+	void close() throws IOException {
+		if(channel != null) {
+			channel.close();
+			channel = null;
+		}
+	}
+
+	private void append(String state, Path temp, Path destination) throws IOException {
+		if(channel == null) {
+			Files.createDirectories(file.toAbsolutePath().getParent());
+			channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+			channel.position(channel.size());
+		}
+		// absolute, so a run started from another working directory still finds them
+		String record = state + '\t' + escape(temp.toAbsolutePath().normalize().toString()) + '\t'
+				+ escape(destination.toAbsolutePath().normalize().toString()) + '\n';
+		ByteBuffer buffer = ByteBuffer.wrap(record.getBytes(StandardCharsets.UTF_8));
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	private static String escape(String value) {
+		return value.replace("\\", "\\\\").replace("\t", "\\t").replace("\n", "\\n");
+	}
+
+	private static String unescape(String value) {
+		StringBuilder builder = new StringBuilder(value.length());
+		for(int x = 0; x < value.length(); x++) {
+			char ch = value.charAt(x);
+			if(ch == '\\' && x + 1 < value.length()) {
+				ch = value.charAt(++x);
+				builder.append(ch == 't'? '\t': ch == 'n'? '\n': ch);
+			} else {
+				builder.append(ch);
+			}
+		}
+		return builder.toString();
+	}
+
+	static class Entry {
+
+		final Path temp;
+		final Path destination;
+		final boolean written;
+
+		Entry(Path temp, Path destination, boolean written) {
+			this.temp = temp;
+			this.destination = destination;
+			this.written = written;
+		}
+	}
+
+}
@@ -0,0 +1,449 @@
+package au.id.villar.synchronizer.ui;
+
+import au.id.villar.synchronizer.BufferPool;
+import au.id.villar.synchronizer.DuplicatesFinder;
+import au.id.villar.synchronizer.SparseFiles;
+import au.id.villar.synchronizer.VerifiedCopies;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributeView;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Copies files and directories so a crash never leaves a destination half written: everything is first written
+ * to a temporary sibling of the destination, synced to disk and then renamed into place, and every step is
+ * recorded in a {@link CopyJournal} so an interrupted copy can be finished or rolled back by {@link #recover()}.
+ * <p>Copies are committed in groups: written copies wait until {@link #BATCH_SIZE} files are pending (or
+ * {@link #flush()} is called) and then are all synced, journaled as WRITTEN with a single journal sync and
+ * renamed into place, so many small files share the cost of the syncs.</p>
+ */
+class FileCopier {
+
+	private static final String TEMP_SUFFIX = ".sync-tmp";
+
+	/** Number of files written to temporary copies after which the pending copies are committed. */
+	static final int BATCH_SIZE = 256;
+
+	private final BufferPool bufferPool;
+	private final StateFiles stateFiles;
+
+	private CopyJournal journal;
+	private DuplicatesFinder duplicatesFinder;
+	private VerifiedCopies verifiedCopies;
+
+	private final LongAdder sparseBytesSkipped = new LongAdder();
+	private final List<PendingCopy> batch = new ArrayList<>();
+	private int batchFiles;
+
+	FileCopier(BufferPool bufferPool, StateFiles stateFiles) {
+		this.bufferPool = bufferPool;
+		this.stateFiles = stateFiles;
+	}
+
+	/**
+	 * If set, before copying a file its content is looked for in the destination root, and when found there it
+	 * is hard linked instead of being copied from the origin. Finding it takes reading the whole origin, so it's
+	 * only worth it because the link saves writing the data and the space for it; where links aren't supported
+	 * the origin is copied as usual.
+	 */
+	void setDuplicatesFinder(DuplicatesFinder duplicatesFinder) {
+		this.duplicatesFinder = duplicatesFinder;
+	}
+
+	/**
+	 * If set, a digest of every file is computed while it's written, and once the copy is synced it's read back
+	 * and checked against it, failing the copy if they don't match. Files passing the check are recorded in
+	 * verifiedCopies with their digest, so the next search only needs to read the copy to compare them. Files
+	 * hard linked to a duplicate are neither checked nor recorded.
+	 */
+	void setVerifiedCopies(VerifiedCopies verifiedCopies) {
+		this.verifiedCopies = verifiedCopies;
+	}
+
+	/** Returns how many bytes were left as holes in the copies instead of being written. */
+	long getSparseBytesSkipped() {
+		return sparseBytesSkipped.sum();
+	}
+
+	/** Commits the pending copies first if node is involved in any of them. */
+	void delete(Path node) throws IOException {
+		flushIfPending(node);
+		forget(node);
+		deleteTree(node);
+	}
+
+	/**
+	 * Renames origin as destination without copying any data. Both paths must be in the same file system.
+	 * Commits the pending copies first if either path is involved in any of them.
+	 */
+	void move(Path origin, Path destination) throws IOException {
+		flushIfPending(origin);
+		flushIfPending(destination);
+		forget(origin);
+		forget(destination);
+		Files.move(origin, destination, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	/**
+	 * Writes a temporary copy of origin and adds it to the pending copies, which are committed once enough of
+	 * them are pending or {@link #flush()} is called. An exception thrown from here means nothing was copied,
+	 * but a copy failing when it's committed is only reported by the call committing it.
+	 *
+	 * @param destinationRoot the directory being synchronized destination belongs to.
+	 */
+	void copy(Path origin, Path destination, Path destinationRoot) throws IOException {
+		flushIfPending(origin);
+		flushIfPending(destination);
+		Path temp = destination.resolveSibling("." + destination.getFileName() + TEMP_SUFFIX);
+		if(Files.exists(temp))
+			deleteTree(temp);
+
+		CopyJournal journal = getJournal();
+		PendingCopy copy = new PendingCopy(temp, destination);
+		journal.begin(temp, destination);
+		try {
+			copyTree(origin, temp, destinationRoot, copy.written, copy.digests);
+		} catch (IOException e) {
+			rollBack(copy);
+			throw e;
+		}
+		batch.add(copy);
+		batchFiles += copy.written.size();
+		if(batchFiles >= BATCH_SIZE)
+			flush();
+	}
+
+	/**
+	 * Commits every pending copy: they are synced and verified all together, journaled as WRITTEN with a single
+	 * journal sync, and renamed into place. A copy failing is rolled back without stopping the others, and the
+	 * first failure is thrown once all of them are done, with any other one added as suppressed.
+	 */
+	void flush() throws IOException {
+		if(batch.isEmpty())
+			return;
+		List<PendingCopy> copies = new ArrayList<>(batch);
+		batch.clear();
+		batchFiles = 0;
+
+		CopyJournal journal = getJournal();
+		IOException failure = null;
+		List<PendingCopy> written = new ArrayList<>();
+		for(PendingCopy copy: copies) {
+			try {
+				sync(copy.written);
+				verify(copy.digests);
+				journal.written(copy.temp, copy.destination);
+				written.add(copy);
+			} catch (IOException e) {
+				failure = addFailure(failure, e);
+				rollBack(copy);
+			}
+		}
+		journal.sync();
+
+		Set<Path> parents = new LinkedHashSet<>();
+		for(PendingCopy copy: written) {
+			try {
+				commit(copy.temp, copy.destination);
+				parents.add(copy.destination.toAbsolutePath().getParent());
+				journal.done(copy.temp, copy.destination);
+				record(copy.digests, copy.temp, copy.destination);
+			} catch (IOException e) {
+				// left as WRITTEN in the journal, so the next recovery finishes it
+				failure = addFailure(failure, e);
+			}
+		}
+		for(Path parent: parents) {
+			syncDirectory(parent);
+		}
+		// DONE on disk before a temporary file of the same name can be written again
+		journal.sync();
+		if(failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Finishes the copies that were interrupted after being completely written and removes the temporary files
+	 * of those interrupted before that.
+	 *
+	 * @return the number of interrupted copies found.
+	 */
+	int recover() throws IOException {
+		CopyJournal journal = getJournal();
+		List<CopyJournal.Entry> pending = journal.pending();
+		for(CopyJournal.Entry entry: pending) {
+			if(!Files.exists(entry.temp))
+				continue;
+			if(entry.written) {
+				commit(entry.temp, entry.destination);
+				syncDirectory(entry.destination.toAbsolutePath().getParent());
+			} else {
+				deleteTree(entry.temp);
+			}
+		}
+		journal.clear();
+		return pending.size();
+	}
+
+	private void deleteTree(Path node) throws IOException {
+		if(Files.isDirectory(node)) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(node)) {
+				for(Path element: stream) {
+					deleteTree(element);
+				}
+			}
+		}
+		Files.delete(node);
+	}
+
+	/* what the duplicates finder knows about a path being replaced or deleted can't be used any more */
+	private void forget(Path path) {
+		if(duplicatesFinder != null)
+			duplicatesFinder.forget(path);
+	}
+
+	private CopyJournal getJournal() {
+		if(journal == null)
+			journal = new CopyJournal(stateFiles.journal());
+		return journal;
+	}
+
+	private void copyTree(Path origin, Path destination, Path destinationRoot, List<Path> written,
+			Map<Path, byte[]> digests) throws IOException {
+		if(Files.isDirectory(origin)) {
+			Files.createDirectory(destination);
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(origin)) {
+				for(Path element: stream) {
+					copyTree(element, destination.resolve(element.getFileName()), destinationRoot, written,
+							digests);
+				}
+			}
+		} else {
+			copyFile(origin, destination, destinationRoot, digests);
+		}
+		written.add(destination);
+	}
+
+	/* if copies are verified and the file isn't linked, the digest of what was written is put in digests */
+	private void copyFile(Path origin, Path destination, Path destinationRoot, Map<Path, byte[]> digests)
+			throws IOException {
+		Path localCopy = duplicatesFinder != null? duplicatesFinder.findCopy(origin, destinationRoot): null;
+		if(localCopy != null) {
+			try {
+				Files.createLink(destination, localCopy);
+				return;
+			} catch (IOException | UnsupportedOperationException e) {
+				// links not supported here, the origin was just read so copying it is the cheapest left
+			}
+		}
+
+		MessageDigest digest = verifiedCopies != null? VerifiedCopies.newDigest(): null;
+		ByteBuffer buffer = bufferPool.acquire();
+		try (FileChannel in = FileChannel.open(origin, StandardOpenOption.READ);
+				FileChannel out = FileChannel.open(destination, StandardOpenOption.CREATE_NEW,
+						StandardOpenOption.WRITE, StandardOpenOption.SPARSE)) {
+			long size = 0;
+			while(fill(in, buffer) > 0) {
+				if(digest != null) {
+					digest.update(buffer);
+					buffer.position(0);
+				}
+				writeSkippingZeroBlocks(out, buffer, size);
+				size += buffer.limit();
+				buffer.clear();
+			}
+			if(out.size() < size) {
+				// the file ends with a hole, writing its very last byte gives the copy its full size
+				buffer.clear().limit(1);
+				buffer.put(0, (byte)0);
+				out.write(buffer, size - 1);
+				sparseBytesSkipped.add(-1);
+			}
+		} finally {
+			bufferPool.release(buffer);
+		}
+		copyAttributes(origin, destination);
+		if(digest != null)
+			digests.put(destination, digest.digest());
+	}
+
+	private int fill(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while(buffer.hasRemaining() && channel.read(buffer) != -1);
+		buffer.flip();
+		return buffer.limit();
+	}
+
+	/*
+	 * Blocks made only of zeros are not written, so they are left as holes in the copy, which reads the same
+	 * while taking no disk space.
+	 */
+	private void writeSkippingZeroBlocks(FileChannel out, ByteBuffer buffer, long offset) throws IOException {
+		int limit = buffer.limit();
+		int pending = 0;
+		for(int block = 0; block < limit; block += SparseFiles.BLOCK_SIZE) {
+			int blockEnd = Math.min(block + SparseFiles.BLOCK_SIZE, limit);
+			if(SparseFiles.isZeroFilled(buffer, block, blockEnd)) {
+				write(out, buffer, pending, block, offset);
+				sparseBytesSkipped.add(blockEnd - block);
+				pending = blockEnd;
+			}
+		}
+		write(out, buffer, pending, limit, offset);
+	}
+
+	private void write(FileChannel out, ByteBuffer buffer, int from, int to, long offset) throws IOException {
+		if(from >= to)
+			return;
+		int limit = buffer.limit();
+		buffer.limit(to).position(from);
+		while(buffer.hasRemaining())
+			out.write(buffer, offset + buffer.position());
+		buffer.limit(limit);
+	}
+
+	/*
+	 * Files are synced all together once the whole tree has been written instead of one by one as they are
+	 * closed, so the kernel can write them back while the copy is still going and most syncs find nothing left
+	 * to do.
+	 */
+	private void sync(List<Path> written) throws IOException {
+		for(Path path: written) {
+			if(Files.isDirectory(path)) {
+				syncDirectory(path);
+			} else {
+				try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+					channel.force(true);
+				}
+			}
+		}
+	}
+
+	/*
+	 * Copies are read back right after being synced, so the data most likely comes from the page cache that was
+	 * just written rather than from the disk: this catches what went wrong writing them (holes included), not
+	 * what the disk does with them. What is on disk is checked by the next search, which reads the copy again
+	 * against the digest recorded for it.
+	 */
+	private void verify(Map<Path, byte[]> digests) throws IOException {
+		for(Map.Entry<Path, byte[]> entry: digests.entrySet()) {
+			if(!Arrays.equals(readDigest(entry.getKey()), entry.getValue())) {
+				throw new IOException("copy doesn't match what was written: " + entry.getKey());
+			}
+		}
+	}
+
+	byte[] readDigest(Path file) throws IOException {
+		MessageDigest digest = VerifiedCopies.newDigest();
+		ByteBuffer buffer = bufferPool.acquire();
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while(fill(channel, buffer) > 0) {
+				digest.update(buffer);
+				buffer.clear();
+			}
+		} finally {
+			bufferPool.release(buffer);
+		}
+		return digest.digest();
+	}
+
+	private void record(Map<Path, byte[]> digests, Path temp, Path destination) throws IOException {
+		for(Path written: digests.keySet()) {
+			Path file = destination.resolve(temp.relativize(written));
+			BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			verifiedCopies.record(file, attributes.size(), attributes.lastModifiedTime().toMillis(),
+					digests.get(written));
+		}
+	}
+
+	private void syncDirectory(Path dir) {
+		try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+			channel.force(true);
+		} catch (IOException e) {
+			// not every platform allows syncing a directory, the data in it is already synced anyway
+		}
+	}
+
+	/* the caller syncs the parent of destination, so renames in the same directory share the sync */
+	private void commit(Path temp, Path destination) throws IOException {
+		forget(destination);
+		if(Files.isDirectory(destination) || (Files.exists(destination) && Files.isDirectory(temp)))
+			deleteTree(destination);
+		Files.move(temp, destination, StandardCopyOption.ATOMIC_MOVE);
+	}
+
+	private void rollBack(PendingCopy copy) throws IOException {
+		if(Files.exists(copy.temp))
+			deleteTree(copy.temp);
+		getJournal().done(copy.temp, copy.destination);
+	}
+
+	private void flushIfPending(Path path) throws IOException {
+		Path absolute = path.toAbsolutePath().normalize();
+		for(PendingCopy copy: batch) {
+			Path destination = copy.destination.toAbsolutePath().normalize();
+			if(absolute.startsWith(destination) || destination.startsWith(absolute)) {
+				flush();
+				return;
+			}
+		}
+	}
+
+	private static IOException addFailure(IOException failure, IOException e) {
+		if(failure == null)
+			return e;
+		failure.addSuppressed(e);
+		return failure;
+	}
+
+	private void copyAttributes(Path origin, Path destination) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(origin, BasicFileAttributes.class);
+		Files.getFileAttributeView(destination, BasicFileAttributeView.class).setTimes(
+				attributes.lastModifiedTime(), attributes.lastAccessTime(), attributes.creationTime());
+		PosixFileAttributeView originView = Files.getFileAttributeView(origin, PosixFileAttributeView.class);
+		PosixFileAttributeView destinationView =
+				Files.getFileAttributeView(destination, PosixFileAttributeView.class);
+		if(originView != null && destinationView != null) {
+			PosixFileAttributes posixAttributes = originView.readAttributes();
+			try {
+				destinationView.setOwner(posixAttributes.owner());
+				destinationView.setGroup(posixAttributes.group());
+			} catch (IOException e) {
+				// only allowed to privileged users, as with Files.copy(COPY_ATTRIBUTES) this is best effort
+			}
+			// set after the owner, as changing it may clear the setuid and setgid bits
+			destinationView.setPermissions(posixAttributes.permissions());
+		}
+	}
+
+	private static class PendingCopy {
+
+		final Path temp;
+		final Path destination;
+		final List<Path> written = new ArrayList<>();
+		final Map<Path, byte[]> digests = new LinkedHashMap<>();
+
+		PendingCopy(Path temp, Path destination) {
+			this.temp = temp;
+			this.destination = destination;
+		}
+	}
+
+}
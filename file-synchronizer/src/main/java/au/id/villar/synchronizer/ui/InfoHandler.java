@@ -1,22 +1,184 @@
 package au.id.villar.synchronizer.ui;
 
+import java.io.BufferedOutputStream;
 import java.io.PrintStream;
 import java.nio.file.Path;
+import java.util.concurrent.locks.LockSupport;
 
+/**
+ * Reports the differences without changing anything. Events are handed to a writer thread through a
+ * {@link RingBuffer}, so formatting and writing to the terminal never slow down the search.
+ */
 class InfoHandler extends CommandLineUIHandler {
 
-	public InfoHandler(boolean verbose, PrintStream out, Path dir1, Path dir2) {
-		super(verbose, out, dir1, dir2);
+	private static final int QUEUE_SIZE = 8192;
+	private static final int OUTPUT_BUFFER_SIZE = 64 * 1024;
+	private static final long IDLE_WAIT_NANOS = 1_000_000;
+
+	private final boolean jsonLines;
+	private final RingBuffer<Runnable> events = new RingBuffer<>(QUEUE_SIZE);
+	private final Thread writer;
+
+	private volatile boolean closed;
+	private volatile RuntimeException failure;
+
+	/**
+	 * @param jsonLines if true, every event is written as a JSON object on its own line instead of as text meant
+	 *                  to be read by a person.
+	 */
+	public InfoHandler(boolean verbose, boolean jsonLines, PrintStream out, Path dir1, Path dir2) {
+		super(verbose, new PrintStream(new BufferedOutputStream(out, OUTPUT_BUFFER_SIZE), false), dir1, dir2);
+		this.jsonLines = jsonLines;
+		this.writer = new Thread(this::writeEvents, "info-writer");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Waits for every event to be written.
+	 *
+	 * @throws IllegalStateException if writing any of them failed, once the rest have been written.
+	 */
+	@Override
+	public void close() {
+		closed = true;
+		try {
+			writer.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		super.close();
+		if(failure != null) {
+			throw new IllegalStateException("couldn't write every difference found", failure);
+		}
+	}
+
+	@Override
+	public void comparing(Path path1, Path path2) {
+		if(verbose && !jsonLines)
+			events.put(() -> super.comparing(path1, path2));
 	}
 
 	@Override
 	public void missingPath(Path existingPath, Path missingPath) {
-		missingPath(existingPath, missingPath, verbose);
+		events.put(() -> {
+			if(jsonLines) {
+				writeJson("missing", getRelativePath(missingPath), "existing", existingPath, "missing", missingPath);
+			} else {
+				missingPath(existingPath, missingPath, verbose);
+			}
+		});
 	}
 
 	@Override
 	public void differentFiles(Path path1, Path path2) {
-		differentFiles(path1, path2, verbose);
+		events.put(() -> {
+			if(jsonLines) {
+				writeJson("different", getRelativePath(path1), "path1", path1, "path2", path2);
+			} else {
+				differentFiles(path1, path2, verbose);
+			}
+		});
+	}
+
+	@Override
+	public void movedPath(Path path1, Path missingPath1, Path path2, Path missingPath2) {
+		events.put(() -> {
+			if(jsonLines) {
+				writeJson("moved", getRelativePath(path1), "path1", path1, "path2", path2);
+			} else {
+				movedPath(path1, path2, verbose);
+			}
+		});
+	}
+
+	@Override
+	public void errorFixingLastModified(Path path, Exception e) {
+		events.put(() -> {
+			if(jsonLines) {
+				writeJson("error", getRelativePath(path), "file", path, "message", e.getMessage());
+			} else {
+				super.errorFixingLastModified(path, e);
+			}
+		});
+	}
+
+	@Override
+	public void errorComparingFiles(Path path1, Path path2, Exception e) {
+		events.put(() -> {
+			if(jsonLines) {
+				writeJson("error", getRelativePath(path1), "path1", path1, "path2", path2, "message", e.getMessage());
+			} else {
+				super.errorComparingFiles(path1, path2, e);
+			}
+		});
+	}
+
+	private void writeEvents() {
+		try {
+			while(true) {
+				Runnable event = events.poll();
+				if(event != null) {
+					run(event);
+				} else if(closed) {
+					if((event = events.poll()) == null)
+						break;
+					run(event);
+				} else {
+					out.flush();
+					LockSupport.parkNanos(IDLE_WAIT_NANOS);
+				}
+			}
+		} finally {
+			events.abandon();
+		}
+	}
+
+	/* one event failing doesn't stop the others from being written, the first failure is reported on close */
+	private void run(Runnable event) {
+		try {
+			event.run();
+		} catch (RuntimeException e) {
+			if(failure == null)
+				failure = e;
+		}
+	}
+
+	private void writeJson(String event, Path path, Object ... fields) {
+		StringBuilder builder = new StringBuilder(256);
+		builder.append("{\"event\":");
+		appendJsonString(builder, event);
+		builder.append(",\"path\":");
+		appendJsonString(builder, path.toString());
+		for(int x = 0; x < fields.length; x += 2) {
+			builder.append(',');
+			appendJsonString(builder, fields[x].toString());
+			builder.append(':');
+			appendJsonString(builder, String.valueOf(fields[x + 1]));
+		}
+		builder.append('}');
+		out.println(builder);
+	}
+
+	static void appendJsonString(StringBuilder builder, String value) {
+		builder.append('"');
+		for(int x = 0; x < value.length(); x++) {
+			char ch = value.charAt(x);
+			switch(ch) {
+				case '"': builder.append("\\\""); break;
+				case '\\': builder.append("\\\\"); break;
+				case '\n': builder.append("\\n"); break;
+				case '\r': builder.append("\\r"); break;
+				case '\t': builder.append("\\t"); break;
+				default:
+					if(ch < 0x20) {
+						builder.append(String.format("\\u%04x", (int)ch));
+					} else {
+						builder.append(ch);
+					}
+			}
+		}
+		builder.append('"');
 	}
 
 }
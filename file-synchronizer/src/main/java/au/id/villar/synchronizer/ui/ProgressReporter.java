@@ -0,0 +1,72 @@
+package au.id.villar.synchronizer.ui;
+
+import au.id.villar.synchronizer.Progress;
+
+import java.io.PrintStream;
+
+/**
+ * Shows the progress of a search as a single line that is rewritten every second, from its own thread so the
+ * search itself only updates counters.
+ */
+class ProgressReporter implements AutoCloseable {
+
+	private static final long INTERVAL_MILLIS = 1000;
+
+	private final Progress progress;
+	private final PrintStream out;
+	private final Thread thread;
+
+	private volatile boolean closed;
+
+	ProgressReporter(Progress progress, PrintStream out) {
+		this.progress = progress;
+		this.out = out;
+		this.thread = new Thread(this::run, "progress-reporter");
+		this.thread.setDaemon(true);
+		this.thread.start();
+	}
+
+	/** Stops updating the line, leaving the final figures shown. */
+	@Override
+	public void close() {
+		closed = true;
+		thread.interrupt();
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		out.printf("%s%n", format(progress));
+		out.flush();
+	}
+
+	static String format(Progress progress) {
+		StringBuilder line = new StringBuilder("\rPROGRESS:      ");
+		if(progress.isEstimateComplete()) {
+			line.append(String.format("%5.1f%% of ", progress.getFraction() * 100));
+		} else {
+			line.append("counting, ");
+		}
+		line.append(String.format("%d files, %d b; %.0f files/s, %.1f MB/s",
+				progress.getEstimatedEntries(), progress.getEstimatedBytes(),
+				progress.getEntriesPerSecond(), progress.getBytesPerSecond() / (1024 * 1024)));
+		long remaining = progress.getRemainingSeconds();
+		if(remaining >= 0) {
+			line.append(String.format(", ETA %d:%02d:%02d", remaining / 3600, remaining / 60 % 60, remaining % 60));
+		}
+		return line.append("   ").toString();
+	}
+
+	private void run() {
+		while(!closed) {
+			try {
+				Thread.sleep(INTERVAL_MILLIS);
+			} catch (InterruptedException e) {
+				return;
+			}
+			out.print(format(progress));
+			out.flush();
+		}
+	}
+
+}
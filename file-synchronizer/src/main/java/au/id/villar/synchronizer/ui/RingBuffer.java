@@ -0,0 +1,65 @@
+package au.id.villar.synchronizer.ui;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Bounded lock-free queue for exactly one producer thread and one consumer thread. The producer only waits when
+ * the queue is full, the consumer never waits. A consumer that stops consuming must call {@link #abandon()}, so
+ * the producer doesn't wait forever.
+ */
+class RingBuffer<T> {
+
+	private static final long FULL_WAIT_NANOS = 50_000;
+
+	private final Object[] elements;
+	private final int mask;
+	private final AtomicLong head = new AtomicLong();
+	private final AtomicLong tail = new AtomicLong();
+
+	private volatile boolean abandoned;
+
+	RingBuffer(int capacity) {
+		if(capacity <= 0 || Integer.bitCount(capacity) != 1) {
+			throw new IllegalArgumentException("capacity must be a power of two");
+		}
+		this.elements = new Object[capacity];
+		this.mask = capacity - 1;
+	}
+
+	/**
+	 * To be called only from the producer thread.
+	 *
+	 * @throws IllegalStateException if the queue is full and the consumer abandoned it.
+	 */
+	void put(T element) {
+		long position = tail.get();
+		while(position - head.get() == elements.length) {
+			if(abandoned) {
+				throw new IllegalStateException("queue full and abandoned by its consumer");
+			}
+			LockSupport.parkNanos(FULL_WAIT_NANOS);
+		}
+		elements[(int)position & mask] = element;
+		tail.lazySet(position + 1);
+	}
+
+	/** To be called from the consumer thread when it won't poll any more. */
+	void abandon() {
+		abandoned = true;
+	}
+
+	/** To be called only from the consumer thread. Returns null if the queue is empty. */
+	@SuppressWarnings("unchecked")
+	T poll() {
+		long position = head.get();
+		if(position == tail.get())
+			return null;
+		int index = (int)position & mask;
+		T element = (T)elements[index];
+		elements[index] = null;
+		head.lazySet(position + 1);
+		return element;
+	}
+
+}
@@ -0,0 +1,177 @@
+package au.id.villar.synchronizer.ui;
+
+import au.id.villar.synchronizer.PathOrder;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Runs a search split in shards, each one by a separate process, and merges what they find into one report
+ * with the same order an unsharded search would have. Workers write their differences as JSON Lines (see
+ * {@link InfoHandler}), already sorted by path, so merging only needs to look at the first line of each.
+ */
+class ShardCoordinator {
+
+	private static final Comparator<Path> PATH_ORDER = new PathOrder();
+
+	/**
+	 * Starts a local worker process for each shard, waits for all of them and writes the merged report to out.
+	 *
+	 * @param workerArgs command line arguments for every worker, the shard to search is added to them.
+	 */
+	static void runShards(int shards, List<String> workerArgs, PrintStream out)
+			throws IOException, InterruptedException {
+		Path tempDir = Files.createTempDirectory("file-synchronizer-shards");
+		List<Path> outputs = new ArrayList<>();
+		List<Process> workers = new ArrayList<>();
+		try {
+			for(int shard = 0; shard < shards; shard++) {
+				Path output = tempDir.resolve("shard-" + shard + ".jsonl");
+				outputs.add(output);
+				List<String> command = new ArrayList<>();
+				command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+				command.add("-cp");
+				command.add(System.getProperty("java.class.path"));
+				command.add(CommandLineUI.class.getName());
+				command.addAll(workerArgs);
+				command.add("--shard=" + shard + "/" + shards);
+				workers.add(new ProcessBuilder(command)
+						.redirectOutput(output.toFile())
+						.redirectError(ProcessBuilder.Redirect.INHERIT)
+						.start());
+			}
+			for(int shard = 0; shard < shards; shard++) {
+				int exitCode = workers.get(shard).waitFor();
+				if(exitCode != 0) {
+					throw new IOException("worker for shard " + shard + " failed with exit code " + exitCode);
+				}
+			}
+			merge(outputs, out);
+		} finally {
+			stop(workers);
+			cleanUp(outputs, tempDir);
+		}
+	}
+
+	/** Merges the reports written by workers, each one sorted by path, into one sorted report. */
+	static void merge(List<Path> reports, PrintStream out) throws IOException {
+		List<BufferedReader> readers = new ArrayList<>();
+		try {
+			PriorityQueue<Head> heads = new PriorityQueue<>();
+			for(Path report: reports) {
+				BufferedReader reader = Files.newBufferedReader(report, StandardCharsets.UTF_8);
+				readers.add(reader);
+				Head head = Head.next(reader, readers.size() - 1);
+				if(head != null)
+					heads.add(head);
+			}
+			Head head;
+			while((head = heads.poll()) != null) {
+				out.println(head.line);
+				Head next = Head.next(readers.get(head.reader), head.reader);
+				if(next != null)
+					heads.add(next);
+			}
+			out.flush();
+		} finally {
+			for(BufferedReader reader: readers) {
+				reader.close();
+			}
+		}
+	}
+
+	/* workers still running once one failed (or the coordinator was interrupted) would only waste resources */
+	private static void stop(List<Process> workers) {
+		for(Process worker: workers) {
+			if(worker.isAlive())
+				worker.destroy();
+		}
+		try {
+			for(Process worker: workers) {
+				worker.waitFor();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/* best effort, so a failure here never hides the reason the shards failed */
+	private static void cleanUp(List<Path> outputs, Path tempDir) {
+		for(Path output: outputs) {
+			try {
+				Files.deleteIfExists(output);
+			} catch (IOException e) {
+				// left in the temporary directory
+			}
+		}
+		try {
+			Files.deleteIfExists(tempDir);
+		} catch (IOException e) {
+			// left in the temporary directory
+		}
+	}
+
+	/** Extracts the value of the "path" field from a line written by {@link InfoHandler}. */
+	static Path readPath(String line) {
+		int start = line.indexOf("\"path\":\"");
+		if(start < 0) {
+			throw new IllegalArgumentException("not a difference: " + line);
+		}
+		StringBuilder builder = new StringBuilder();
+		for(int x = start + "\"path\":\"".length(); x < line.length(); x++) {
+			char ch = line.charAt(x);
+			if(ch == '"')
+				return Paths.get(builder.toString());
+			if(ch == '\\') {
+				ch = line.charAt(++x);
+				switch(ch) {
+					case 'n': builder.append('\n'); break;
+					case 'r': builder.append('\r'); break;
+					case 't': builder.append('\t'); break;
+					case 'u': builder.append((char)Integer.parseInt(line.substring(x + 1, x + 5), 16)); x += 4; break;
+					default: builder.append(ch);
+				}
+			} else {
+				builder.append(ch);
+			}
+		}
+		throw new IllegalArgumentException("not a difference: " + line);
+	}
+
+	private static class Head implements Comparable<Head> {
+
+		final String line;
+		final Path path;
+		final int reader;
+
+		Head(String line, int reader) {
+			this.line = line;
+			this.path = readPath(line);
+			this.reader = reader;
+		}
+
+		static Head next(BufferedReader reader, int index) throws IOException {
+			String line;
+			do {
+				line = reader.readLine();
+			} while(line != null && line.isEmpty());
+			return line != null? new Head(line, index): null;
+		}
+
+		@Override
+		public int compareTo(Head other) {
+			int compared = PATH_ORDER.compare(path, other.path);
+			return compared != 0? compared: Integer.compare(reader, other.reader);
+		}
+	}
+
+}
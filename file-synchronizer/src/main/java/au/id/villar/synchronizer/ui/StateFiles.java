@@ -0,0 +1,59 @@
+package au.id.villar.synchronizer.ui;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Locates the files where state about a pair of synchronized directories is kept between runs. They live
+ * outside both directories, so they never show up as differences.
+ */
+class StateFiles {
+
+	static final Path DEFAULT_STATE_DIR = Paths.get(System.getProperty("user.home"), ".file-synchronizer");
+
+	private final Path stateDir;
+	private final Path dir1;
+	private final Path dir2;
+
+	StateFiles(Path stateDir, Path dir1, Path dir2) {
+		this.stateDir = stateDir;
+		this.dir1 = dir1;
+		this.dir2 = dir2;
+	}
+
+	Path journal() {
+		return stateDir.resolve(key() + ".journal");
+	}
+
+	/** File keeping the copies verified by a shard (0 of 1 when not sharded), for that shard to use. */
+	Path verifiedCopies(int shardIndex, int shardCount) {
+		return stateDir.resolve(key() + shardSuffix(shardIndex, shardCount) + ".verified");
+	}
+
+	/** File keeping where the content verification of a shard (0 of 1 when not sharded) has to go on from. */
+	Path cursor(int shardIndex, int shardCount) {
+		return stateDir.resolve(key() + shardSuffix(shardIndex, shardCount) + ".cursor");
+	}
+
+	private String shardSuffix(int shardIndex, int shardCount) {
+		return shardCount > 1? "-" + shardIndex + "of" + shardCount: "";
+	}
+
+	private String key() {
+		String paths = dir1.toAbsolutePath().normalize() + "\n" + dir2.toAbsolutePath().normalize();
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(paths.getBytes(StandardCharsets.UTF_8));
+			StringBuilder builder = new StringBuilder();
+			for(int x = 0; x < 8; x++) {
+				builder.append(String.format("%02x", digest[x]));
+			}
+			return builder.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+}
@@ -1,19 +1,57 @@
 package au.id.villar.synchronizer.ui;
 
+import au.id.villar.synchronizer.BufferPool;
+import au.id.villar.synchronizer.DuplicatesFinder;
+import au.id.villar.synchronizer.VerifiedCopies;
+
 import java.io.*;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
 import java.nio.file.Path;
-import java.nio.file.StandardCopyOption;
 import java.util.Arrays;
 
 class SyncHandler extends CommandLineUIHandler {
 
 	private InputStream in;
+	private final FileCopier copier;
 
-	public SyncHandler(boolean verbose, InputStream in, PrintStream out, Path dir1, Path dir2) {
+	public SyncHandler(boolean verbose, InputStream in, PrintStream out, Path dir1, Path dir2,
+			BufferPool bufferPool, StateFiles stateFiles) {
 		super(verbose, out, dir1, dir2);
 		this.in = in;
+		this.copier = new FileCopier(bufferPool, stateFiles);
+	}
+
+	/**
+	 * Makes files to be copied from the other directory to be hard linked to a file with the same content
+	 * already present in the destination directory, if there is one, so both will share any later change.
+	 */
+	public void setDuplicatesFinder(DuplicatesFinder duplicatesFinder) {
+		copier.setDuplicatesFinder(duplicatesFinder);
+	}
+
+	/** Makes every copied file to be read back and checked, and recorded with its digest if it's fine. */
+	public void setVerifiedCopies(VerifiedCopies verifiedCopies) {
+		copier.setVerifiedCopies(verifiedCopies);
+	}
+
+	public long getSparseBytesSkipped() {
+		return copier.getSparseBytesSkipped();
+	}
+
+	public void recoverInterruptedCopies() throws IOException {
+		int recovered = copier.recover();
+		if(recovered > 0)
+			out.printf("RECOVERED %d interrupted copies from a previous run%n", recovered);
+	}
+
+	/** Commits the copies still pending, reporting any of them failing. */
+	@Override
+	public void close() {
+		try {
+			copier.flush();
+		} catch (IOException e) {
+			out.printf("ERROR: %s%n", e.getMessage());
+		}
+		super.close();
 	}
 
 	@Override
@@ -28,7 +66,7 @@ class SyncHandler extends CommandLineUIHandler {
 				'C', 'c', 'R', 'r', 'I', 'i', 'A', 'a')) {
 			case 'C':case 'c':
 				try {
-					copy(existingPath, missingPath);
+					copier.copy(existingPath, missingPath, getRoot(missingPath));
 					out.printf("COPIED %s to %s%n", existingPath, missingPath);
 				} catch (IOException e) {
 					out.printf("ERROR: %s%n", e.getMessage());
@@ -36,7 +74,7 @@ class SyncHandler extends CommandLineUIHandler {
 				break;
 			case 'R':case 'r':
 				try {
-					delete(existingPath);
+					copier.delete(existingPath);
 					out.printf("DELETED %s%n", existingPath);
 				} catch (IOException e) {
 					out.printf("ERROR: %s%n", e.getMessage());
@@ -46,8 +84,7 @@ class SyncHandler extends CommandLineUIHandler {
 				out.printf("IGNORED %s%n", getRelativePath(missingPath));
 				break;
 			case 'A':case 'a':
-				out.printf("Stopped by the user%n");
-				System.exit(1);
+				abort();
 				break;
 		}
 	}
@@ -63,7 +100,7 @@ class SyncHandler extends CommandLineUIHandler {
 				'1', '2', 'I', 'i', 'A', 'a')) {
 			case '1':
 				try {
-					copy(path1, path2);
+					copier.copy(path1, path2, getRoot(path2));
 					out.printf("COPIED %s to %s%n", path1, path2);
 				} catch (IOException e) {
 					out.printf("ERROR: %s%n", e.getMessage());
@@ -71,7 +108,7 @@ class SyncHandler extends CommandLineUIHandler {
 				break;
 			case '2':
 				try {
-					copy(path2, path1);
+					copier.copy(path2, path1, getRoot(path1));
 					out.printf("COPIED %s to %s%n", path2, path1);
 				} catch (IOException e) {
 					out.printf("ERROR: %s%n", e.getMessage());
@@ -81,8 +118,43 @@ class SyncHandler extends CommandLineUIHandler {
 				out.printf("IGNORED %s%n", getRelativePath(path1));
 				break;
 			case 'A':case 'a':
-				out.printf("Stopped by the user%n");
-				System.exit(1);
+				abort();
+				break;
+		}
+	}
+
+	@Override
+	public void movedPath(Path path1, Path missingPath1, Path path2, Path missingPath2) {
+		movedPath(path1, path2, true);
+
+		switch(readOption("Possible options:%n" +
+						"    [1] rename " + path2 + " as in path1,%n" +
+						"    [2] rename " + path1 + " as in path2,%n" +
+						"    [I/i] ignore, [A/a] abort%n    ",
+				'1', '2', 'I', 'i', 'A', 'a')) {
+			case '1':
+				try {
+					Path destination = dir2.resolve(dir1.relativize(path1));
+					copier.move(path2, destination);
+					out.printf("MOVED %s to %s%n", path2, destination);
+				} catch (IOException e) {
+					out.printf("ERROR: %s%n", e.getMessage());
+				}
+				break;
+			case '2':
+				try {
+					Path destination = dir1.resolve(dir2.relativize(path2));
+					copier.move(path1, destination);
+					out.printf("MOVED %s to %s%n", path1, destination);
+				} catch (IOException e) {
+					out.printf("ERROR: %s%n", e.getMessage());
+				}
+				break;
+			case 'I':case 'i':
+				out.printf("IGNORED %s%n", getRelativePath(path1));
+				break;
+			case 'A':case 'a':
+				abort();
 				break;
 		}
 	}
@@ -99,6 +171,13 @@ class SyncHandler extends CommandLineUIHandler {
 		ignoreOrAbort();
 	}
 
+	/* the copies already reported as done are committed before leaving */
+	private void abort() {
+		close();
+		out.printf("Stopped by the user%n");
+		System.exit(1);
+	}
+
 	private void ignoreOrAbort() {
 		switch(readOption("[I/i] ignore, [A/a] abort ",
 				'I', 'i', 'A', 'a')) {
@@ -106,8 +185,7 @@ class SyncHandler extends CommandLineUIHandler {
 				out.printf("IGNORED%n");
 				break;
 			case 'A':case 'a':
-				out.printf("Stopped by the user%n");
-				System.exit(1);
+				abort();
 				break;
 		}
 	}
@@ -158,30 +236,4 @@ class SyncHandler extends CommandLineUIHandler {
 		return (read >= '0' && read <= '9') || (read >= 'A' && read <= 'Z') || (read >= 'a' && read <= 'z');
 	}
 
-	private void delete(Path node) throws IOException {
-		if(Files.isDirectory(node)) {
-			try (DirectoryStream<Path> stream = Files.newDirectoryStream(node)) {
-				for(Path element: stream) {
-					delete(element);
-				}
-			}
-		}
-		Files.delete(node);
-	}
-
-	private void copy(Path origin, Path destination) throws IOException {
-		if(Files.exists(destination))
-			delete(destination);
-		if(Files.isDirectory(origin)) {
-			Files.createDirectories(destination);
-			try (DirectoryStream<Path> stream = Files.newDirectoryStream(origin)) {
-				for(Path element: stream) {
-					copy(element, destination.resolve(element.getFileName()));
-				}
-			}
-		} else {
-			Files.copy(origin, destination, StandardCopyOption.COPY_ATTRIBUTES);
-		}
-	}
-
 }
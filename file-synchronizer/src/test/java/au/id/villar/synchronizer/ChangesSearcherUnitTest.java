@@ -9,13 +9,18 @@ import org.junit.Test;
 
 import java.io.BufferedWriter;
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class ChangesSearcherUnitTest {
 
@@ -229,6 +234,410 @@ public class ChangesSearcherUnitTest {
 		verify(handler, never()).errorFixingLastModified(any(), any());
 	}
 
+	@Test
+	public void largeFilesTest() throws IOException, InterruptedException {
+		Path root1 = Files.createDirectory(testRoot.resolve("root1"));
+		Path root2 = Files.createDirectory(testRoot.resolve("root2"));
+
+		byte[] content = new byte[BufferPool.DEFAULT_BUFFER_SIZE * 2 + 10];
+		Arrays.fill(content, (byte)'X');
+		Files.write(root1.resolve("same"), content);
+		Files.write(root2.resolve("same"), content);
+		Files.write(root1.resolve("different"), content);
+		content[content.length - 1] = 'Y';
+		Files.write(root2.resolve("different"), content);
+
+		ChangesHandler handler = mock(ChangesHandler.class);
+		ChangesSearcher searcher = new ChangesSearcher(handler, root1, root2, null);
+
+		searcher.search();
+
+		verify(handler, times(2)).comparing(any(), any());
+		verify(handler).differentFiles(root1.resolve("different"), root2.resolve("different"));
+		verify(handler, never()).missingPath(any(), any());
+		verify(handler, never()).errorComparingFiles(any(), any(), any());
+	}
+
+	@Test
+	public void smallFilesTest() throws IOException, InterruptedException {
+		Path root1 = Files.createDirectory(testRoot.resolve("root1"));
+		Path root2 = Files.createDirectory(testRoot.resolve("root2"));
+
+		byte[] content = new byte[ChangesSearcher.SMALL_FILE_SIZE - 1];
+		Arrays.fill(content, (byte)'X');
+		Files.write(root1.resolve("same"), content);
+		Files.write(root2.resolve("same"), content);
+		Files.write(root1.resolve("different"), content);
+		content[content.length - 1] = 'Y';
+		Files.write(root2.resolve("different"), content);
+
+		ChangesHandler handler = mock(ChangesHandler.class);
+		ChangesSearcher searcher = new ChangesSearcher(handler, root1, root2, null);
+		BufferPool bufferPool = new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE);
+		searcher.setBufferPool(bufferPool);
+
+		searcher.search();
+
+		verify(handler).differentFiles(root1.resolve("different"), root2.resolve("different"));
+		verify(handler, times(1)).differentFiles(any(), any());
+		// small files never take the large buffers
+		assertEquals(0, bufferPool.getHits() + bufferPool.getMisses());
+
+		Files.write(root1.resolve("big"), new byte[ChangesSearcher.SMALL_FILE_SIZE]);
+		Files.write(root2.resolve("big"), new byte[ChangesSearcher.SMALL_FILE_SIZE]);
+		searcher.search();
+		assertEquals(2, bufferPool.getHits() + bufferPool.getMisses());
+	}
+
+	@Test
+	public void zeroFilledFilesTest() throws IOException, InterruptedException {
+		Path root1 = Files.createDirectory(testRoot.resolve("root1"));
+		Path root2 = Files.createDirectory(testRoot.resolve("root2"));
+
+		byte[] content = new byte[BufferPool.DEFAULT_BUFFER_SIZE * 2];
+		Files.write(root1.resolve("same"), content);
+		Files.write(root2.resolve("same"), content);
+		Files.write(root1.resolve("different"), content);
+		content[BufferPool.DEFAULT_BUFFER_SIZE + 1] = 1;
+		Files.write(root2.resolve("different"), content);
+		byte[] dataAtTheEnd = new byte[SparseFiles.BLOCK_SIZE * 2 + 1000];
+		dataAtTheEnd[dataAtTheEnd.length - 1] = 1;
+		Files.write(root1.resolve("dataAtTheEnd"), dataAtTheEnd);
+		Files.write(root2.resolve("dataAtTheEnd"), dataAtTheEnd);
+
+		ChangesHandler handler = mock(ChangesHandler.class);
+		ChangesSearcher searcher = new ChangesSearcher(handler, root1, root2, null);
+
+		searcher.search();
+
+		verify(handler).differentFiles(root1.resolve("different"), root2.resolve("different"));
+		verify(handler, times(1)).differentFiles(any(), any());
+	}
+
+	@Test
+	public void detectMovesTest() throws IOException, InterruptedException {
+		Path root1 = Files.createDirectory(testRoot.resolve("root1"));
+		Path root2 = Files.createDirectory(testRoot.resolve("root2"));
+
+		Files.createDirectory(root1.resolve("dirA"));
+		Files.createDirectory(root2.resolve("dirB"));
+		createFile(root1, Paths.get("dirA", "uno"), "UNO");
+		createFile(root2, Paths.get("dirB", "uno"), "UNO");
+		createFile(root1, Paths.get("dos"), "DOS");
+		createFile(root2, Paths.get("renamedDos"), "DOS");
+		createFile(root1, Paths.get("tres"), "TRES");
+		createFile(root2, Paths.get("cuatro"), "CUAT");
+		// same content, but not the same file
+		createFile(root1, Paths.get("cinco"), "CINCO");
+		createFile(root2, Paths.get("otherCinco"), "CINCO");
+		// empty files all look the same
+		createFile(root1, Paths.get("empty1"), "");
+		createFile(root2, Paths.get("empty2"), "");
+		FileTime lastModified = FileTime.from(1_000_000, TimeUnit.SECONDS);
+		for(Path path: Arrays.asList(root1.resolve("dos"), root2.resolve("renamedDos"), root1.resolve("empty1"),
+				root2.resolve("empty2"))) {
+			Files.setLastModifiedTime(path, lastModified);
+		}
+		Files.setLastModifiedTime(root1.resolve("cinco"), lastModified);
+		Files.setLastModifiedTime(root2.resolve("otherCinco"), FileTime.from(2_000_000, TimeUnit.SECONDS));
+
+		ChangesHandler handler = mock(ChangesHandler.class);
+		ChangesSearcher searcher = new ChangesSearcher(handler, root1, root2, null);
+
+		searcher.setDetectMoves(true);
+		searcher.search();
+
+		verify(handler).movedPath(root1.resolve("dirA"), root2.resolve("dirA"), root2.resolve("dirB"),
+				root1.resolve("dirB"));
+		verify(handler).movedPath(root1.resolve("dos"), root2.resolve("dos"), root2.resolve("renamedDos"),
+				root1.resolve("renamedDos"));
+		verify(handler).missingPath(root1.resolve("tres"), root2.resolve("tres"));
+		verify(handler).missingPath(root2.resolve("cuatro"), root1.resolve("cuatro"));
+		verify(handler).missingPath(root1.resolve("cinco"), root2.resolve("cinco"));
+		verify(handler).missingPath(root2.resolve("otherCinco"), root1.resolve("otherCinco"));
+		verify(handler).missingPath(root1.resolve("empty1"), root2.resolve("empty1"));
+		verify(handler).missingPath(root2.resolve("empty2"), root1.resolve("empty2"));
+		verify(handler, times(2)).movedPath(any(), any(), any(), any());
+		verify(handler, times(6)).missingPath(any(), any());
+		verify(handler, never()).errorComparingFiles(any(), any(), any());
+	}
+
+	@Test
+	public void movesReportedAsMissingByDefaultTest() throws IOException, InterruptedException {
+		Path root1 = Files.createDirectory(testRoot.resolve("root1"));
+		Path root2 = Files.createDirectory(testRoot.resolve("root2"));
+		createFile(root1, Paths.get("dos"), "DOS");
+		createFile(root2, Paths.get("renamedDos"), "DOS");
+		Files.setLastModifiedTime(root2.resolve("renamedDos"), Files.getLastModifiedTime(root1.resolve("dos")));
+
+		List<String> missing = new ArrayList<>();
+		ChangesHandler handler = new ChangesHandler() {
+
+			@Override
+			public void comparing(Path path1, Path path2) {
+			}
+
+			@Override
+			public void missingPath(Path existingPath, Path missingPath) {
+				missing.add(existingPath + " -> " + missingPath);
+			}
+
+			@Override
+			public void differentFiles(Path path1, Path path2) {
+			}
+
+			@Override
+			public void errorFixingLastModified(Path path, Exception e) {
+			}
+
+			@Override
+			public void errorComparingFiles(Path path1, Path path2, Exception e) {
+			}
+
+		};
+		ChangesSearcher searcher = new ChangesSearcher(handler, root1, root2, null);
+		searcher.setDetectMoves(true);
+		searcher.search();
+
+		assertEquals(Arrays.asList(root1.resolve("dos") + " -> " + root2.resolve("dos"),
+				root2.resolve("renamedDos") + " -> " + root1.resolve("renamedDos")), missing);
+	}
+
+	@Test
+	public void differencesStreamTest() throws IOException {
+		Path root1 = Files.createDirectory(testRoot.resolve("root1"));
+		Path root2 = Files.createDirectory(testRoot.resolve("root2"));
+
+		for(int x = 0; x < 20; x++) {
+			Path dir = Paths.get("dir" + x);
+			Files.createDirectory(root1.resolve(dir));
+			Files.createDirectory(root2.resolve(dir));
+			for(int y = 0; y < 10; y++) {
+				createFile(root1, dir.resolve("file" + y), "CONTENT" + y);
+				if(y % 3 != 0) {
+					createFile(root2, dir.resolve("file" + y), y % 3 == 1? "CONTENT" + y: "OTHER" + y);
+				}
+			}
+		}
+
+		ChangesHandler handler = mock(ChangesHandler.class);
+		ChangesSearcher searcher = new ChangesSearcher(handler, root1, root2, null);
+
+		List<Difference> sequential = searcher.differences().collect(Collectors.toList());
+		List<Difference> parallel = searcher.differences().parallel().collect(Collectors.toList());
+
+		assertEquals(20 * 4 + 20 * 3, sequential.size());
+		assertEquals(sequential, parallel);
+		assertEquals(new Difference(Difference.Type.MISSING_PATH, root1.resolve(Paths.get("dir0", "file0")),
+				root2.resolve(Paths.get("dir0", "file0")), null), sequential.get(0));
+		assertEquals(20 * 3, sequential.stream().filter(d -> d.getType() == Difference.Type.DIFFERENT_FILES).count());
+
+		try (Stream<Difference> differences = searcher.differences()) {
+			assertTrue(differences.findFirst().isPresent());
+		}
+		verifyZeroInteractions(handler);
+	}
+
+	@Test
+	public void shardsTest() throws IOException {
+		Path root1 = Files.createDirectory(testRoot.resolve("root1"));
+		Path root2 = Files.createDirectory(testRoot.resolve("root2"));
+
+		for(int x = 0; x < 10; x++) {
+			Path dir = Paths.get("dir" + x);
+			Files.createDirectory(root1.resolve(dir));
+			Files.createDirectory(root2.resolve(dir));
+			createFile(root1, dir.resolve("uno"), "UNO");
+			createFile(root2, dir.resolve("uno"), "UNO" + x);
+			createFile(root1, Paths.get("file" + x), "FILE");
+		}
+
+		ChangesHandler handler = mock(ChangesHandler.class);
+		ChangesSearcher searcher = new ChangesSearcher(handler, root1, root2, null);
+		List<Difference> all = searcher.differences().collect(Collectors.toList());
+
+		List<Difference> merged = new ArrayList<>();
+		for(int shard = 0; shard < 3; shard++) {
+			searcher.setShard(shard, 3);
+			List<Difference> differences = searcher.differences().collect(Collectors.toList());
+			assertTrue(differences.size() < all.size());
+			merged.addAll(differences);
+		}
+		PathOrder order = new PathOrder();
+		merged.sort((d1, d2) -> order.compare(root1.relativize(d1.getPath1()), root1.relativize(d2.getPath1())));
+
+		assertEquals(20, all.size());
+		assertEquals(all, merged);
+	}
+
+	@Test
+	public void progressTest() throws IOException, InterruptedException {
+		Path root1 = Files.createDirectory(testRoot.resolve("root1"));
+		Path root2 = Files.createDirectory(testRoot.resolve("root2"));
+
+		Files.createDirectories(root1.resolve(Paths.get("missing", "sub")));
+		createFile(root1, Paths.get("missing", "sub", "uno"), "UNO");
+		createFile(root1, Paths.get("missing", "dos"), "DOS");
+		Files.createDirectory(root1.resolve("dir"));
+		Files.createDirectory(root2.resolve("dir"));
+		createFile(root1, Paths.get("dir", "tres"), "TRES");
+		createFile(root2, Paths.get("dir", "tres"), "TRES");
+		createFile(root1, Paths.get("cuatro"), "CUATRO");
+		createFile(root2, Paths.get("cuatro"), "CUATR0");
+		createFile(root2, Paths.get("onlyIn2"), "ONLY IN 2");
+
+		ChangesSearcher searcher = new ChangesSearcher(mock(ChangesHandler.class), root1, root2, null);
+		Progress progress = searcher.trackProgress();
+		while(!progress.isEstimateComplete()) {
+			Thread.sleep(10);
+		}
+		searcher.search();
+
+		assertEquals(7, progress.getEstimatedEntries());
+		assertEquals(16, progress.getEstimatedBytes());
+		assertEquals(7, progress.getEntries());
+		assertEquals(16, progress.getBytes());
+		assertEquals(1.0, progress.getFraction(), 0);
+		assertEquals(0, progress.getRemainingSeconds());
+	}
+
+	@Test
+	public void progressSkippedBeforeCountedTest() throws IOException, InterruptedException {
+		Path root1 = Files.createDirectory(testRoot.resolve("root1"));
+		Path root2 = Files.createDirectory(testRoot.resolve("root2"));
+		Files.createDirectories(root1.resolve(Paths.get("missing", "sub")));
+		createFile(root1, Paths.get("missing", "sub", "uno"), "UNO");
+		createFile(root1, Paths.get("missing", "dos"), "DOS");
+		Files.createDirectory(root1.resolve("visited"));
+
+		// the search gets to both directories before the count does
+		Progress progress = new Progress();
+		progress.subtreeSkipped(root1.resolve("missing"));
+		progress.directoryVisited(root1.resolve("visited"));
+		progress.startEstimate(new ChangesSearcher(mock(ChangesHandler.class), root1, root2, null), root1);
+		while(!progress.isEstimateComplete()) {
+			Thread.sleep(10);
+		}
+
+		assertEquals(5, progress.getEstimatedEntries());
+		assertEquals(5, progress.getEntries());
+		assertEquals(6, progress.getEstimatedBytes());
+		assertEquals(6, progress.getBytes());
+	}
+
+	@Test
+	public void contentBudgetTest() throws IOException {
+		Path root1 = Files.createDirectory(testRoot.resolve("root1"));
+		Path root2 = Files.createDirectory(testRoot.resolve("root2"));
+
+		FileTime lastModified = FileTime.from(1_000_000, TimeUnit.SECONDS);
+		for(String name: Arrays.asList("a", "b", "c", "d")) {
+			createFile(root1, Paths.get(name), "ONE");
+			createFile(root2, Paths.get(name), "TWO");
+			Files.setLastModifiedTime(root1.resolve(name), lastModified);
+			Files.setLastModifiedTime(root2.resolve(name), lastModified);
+		}
+
+		ChangesSearcher searcher = new ChangesSearcher(mock(ChangesHandler.class), root1, root2, null);
+
+		ContentBudget budget = new ContentBudget(null, 0, Long.MAX_VALUE, 6);
+		searcher.setContentBudget(budget);
+		assertEquals(Arrays.asList(root1.resolve("a"), root1.resolve("b")),
+				searcher.differences().map(Difference::getPath1).collect(Collectors.toList()));
+		assertTrue(budget.isExhausted());
+		assertEquals(2, budget.getFilesVerified());
+		assertEquals(Paths.get("b"), budget.getNextCursor());
+
+		assertEquals(0, budget.getNextCursorOffset());
+
+		budget = new ContentBudget(budget.getNextCursor(), budget.getNextCursorOffset(), Long.MAX_VALUE, 6);
+		searcher.setContentBudget(budget);
+		assertEquals(Arrays.asList(root1.resolve("c"), root1.resolve("d")),
+				searcher.differences().map(Difference::getPath1).collect(Collectors.toList()));
+		assertFalse(budget.isExhausted());
+		assertNull(budget.getNextCursor());
+	}
+
+	@Test
+	public void contentBudgetStopsWithinFileTest() throws IOException {
+		Path root1 = Files.createDirectory(testRoot.resolve("root1"));
+		Path root2 = Files.createDirectory(testRoot.resolve("root2"));
+
+		byte[] content = new byte[10000];
+		Files.write(root1.resolve("big"), content);
+		content[content.length - 1] = 1;
+		Files.write(root2.resolve("big"), content);
+		FileTime lastModified = FileTime.from(1_000_000, TimeUnit.SECONDS);
+		Files.setLastModifiedTime(root1.resolve("big"), lastModified);
+		Files.setLastModifiedTime(root2.resolve("big"), lastModified);
+
+		ChangesSearcher searcher = new ChangesSearcher(mock(ChangesHandler.class), root1, root2, null);
+		searcher.setBufferPool(new BufferPool(4096));
+
+		// every run compares one buffer and resumes from where the previous one stopped
+		ContentBudget budget = new ContentBudget(null, 0, Long.MAX_VALUE, 4096);
+		for(long offset = 4096; offset < content.length; offset += 4096) {
+			searcher.setContentBudget(budget);
+			assertEquals(0, searcher.differences().count());
+			assertEquals(4096, budget.getBytesVerified());
+			assertEquals(0, budget.getFilesVerified());
+			assertEquals(Paths.get("big"), budget.getNextCursor());
+			assertEquals(offset, budget.getNextCursorOffset());
+			budget = new ContentBudget(budget.getNextCursor(), budget.getNextCursorOffset(), Long.MAX_VALUE, 4096);
+		}
+		searcher.setContentBudget(budget);
+		assertEquals(1, searcher.differences().count());
+		assertEquals(1, budget.getFilesVerified());
+		assertNull(budget.getNextCursor());
+	}
+
+	@Test
+	public void verifiedCopiesTest() throws IOException {
+		Path root1 = Files.createDirectory(testRoot.resolve("root1"));
+		Path root2 = Files.createDirectory(testRoot.resolve("root2"));
+
+		FileTime lastModified = FileTime.from(1_000_000, TimeUnit.SECONDS);
+		createFile(root1, Paths.get("uno"), "ONE");
+		createFile(root2, Paths.get("uno"), "TWO");
+		Files.setLastModifiedTime(root1.resolve("uno"), lastModified);
+		Files.setLastModifiedTime(root2.resolve("uno"), lastModified);
+
+		Path index = testRoot.resolve("index");
+		VerifiedCopies verifiedCopies = new VerifiedCopies(index);
+		verifiedCopies.record(root2.resolve("uno"), 3, lastModified.toMillis(), digest("TWO"));
+		verifiedCopies.save();
+		verifiedCopies = new VerifiedCopies(index);
+		assertEquals(1, verifiedCopies.size());
+
+		// only the copy is read, and it matches its digest
+		ChangesSearcher searcher = new ChangesSearcher(mock(ChangesHandler.class), root1, root2, null);
+		searcher.setVerifiedCopies(verifiedCopies);
+		assertEquals(0, searcher.differences().count());
+		assertEquals(0, verifiedCopies.size());
+
+		// the record spares only the first comparison
+		assertEquals(1, searcher.differences().count());
+
+		// a copy no longer matching its digest is different
+		verifiedCopies.record(root2.resolve("uno"), 3, lastModified.toMillis(), digest("ONE"));
+		assertEquals(1, searcher.differences().count());
+		assertEquals(0, verifiedCopies.size());
+
+		// copies the other way round are found as well
+		verifiedCopies.record(root1.resolve("uno"), 3, lastModified.toMillis(), digest("ONE"));
+		assertEquals(0, searcher.differences().count());
+
+		verifiedCopies.record(root2.resolve("uno"), 3, lastModified.toMillis(), digest("TWO"));
+		Files.setLastModifiedTime(root1.resolve("uno"), FileTime.from(2_000_000, TimeUnit.SECONDS));
+		Files.setLastModifiedTime(root2.resolve("uno"), FileTime.from(2_000_000, TimeUnit.SECONDS));
+		assertEquals(1, searcher.differences().count());
+		assertEquals(0, verifiedCopies.size());
+	}
+
+	private byte[] digest(String content) {
+		return VerifiedCopies.newDigest().digest(content.getBytes(StandardCharsets.UTF_8));
+	}
+
 	private Path createTempDirectory() throws IOException {
 		return Files.createTempDirectory("TEST_au.id.villar.synchronizer");
 	}
@@ -0,0 +1,94 @@
+package au.id.villar.synchronizer;
+
+import static org.junit.Assert.*;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+public class DuplicatesFinderUnitTest {
+
+	Path testRoot;
+
+	@Before
+	public void setUp() throws IOException {
+		testRoot = Files.createTempDirectory("TEST_au.id.villar.synchronizer");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		delete(testRoot);
+	}
+
+	@Test
+	public void findDuplicatesTest() throws IOException {
+		Path root1 = Files.createDirectory(testRoot.resolve("root1"));
+		Path root2 = Files.createDirectory(testRoot.resolve("root2"));
+
+		byte[] big = new byte[DuplicatesFinder.PARTIAL_HASH_SIZE * 3];
+		Arrays.fill(big, (byte)'X');
+		Files.write(root1.resolve("big"), big);
+		Files.write(root2.resolve("bigCopy"), big);
+		big[big.length - 1] = 'Y';
+		Files.write(root2.resolve("bigSamePrefix"), big);
+
+		Files.write(root1.resolve("uno"), "UNO".getBytes());
+		Files.write(root1.resolve("unoCopy"), "UNO".getBytes());
+		Files.write(root2.resolve("dos"), "DOS".getBytes());
+		Files.write(root2.resolve("empty1"), new byte[0]);
+		Files.write(root2.resolve("empty2"), new byte[0]);
+		Files.createDirectory(root2.resolve("skipped"));
+		Files.write(root2.resolve(Paths.get("skipped", "uno")), "UNO".getBytes());
+
+		DuplicatesFinder finder = new DuplicatesFinder(Arrays.asList(root1, root2),
+				Collections.singletonList(Paths.get("skipped")));
+
+		List<List<Path>> duplicates = finder.findDuplicates();
+
+		assertEquals(Arrays.asList(
+				Arrays.asList(root1.resolve("big"), root2.resolve("bigCopy")),
+				Arrays.asList(root1.resolve("uno"), root1.resolve("unoCopy"))), duplicates);
+		assertEquals(root2.resolve("bigCopy"), finder.findCopy(root1.resolve("big"), root2));
+		assertNull(finder.findCopy(root1.resolve("uno"), root2));
+	}
+
+	@Test
+	public void changedFilesAreHashedAgainTest() throws IOException {
+		Path root1 = Files.createDirectory(testRoot.resolve("root1"));
+		Path root2 = Files.createDirectory(testRoot.resolve("root2"));
+		Files.write(root1.resolve("uno"), "UNO".getBytes());
+		Files.write(root2.resolve("copy"), "UNO".getBytes());
+
+		DuplicatesFinder finder = new DuplicatesFinder(Arrays.asList(root1, root2), null);
+		assertEquals(root2.resolve("copy"), finder.findCopy(root1.resolve("uno"), root2));
+
+		// same size, rewritten in place
+		Files.write(root2.resolve("copy"), "DOS".getBytes());
+		Files.setLastModifiedTime(root2.resolve("copy"), FileTime.from(1_000_000, TimeUnit.SECONDS));
+		assertNull(finder.findCopy(root1.resolve("uno"), root2));
+		assertTrue(finder.findDuplicates().isEmpty());
+	}
+
+	private void delete(Path node) throws IOException {
+		if(Files.isDirectory(node)) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(node)) {
+				for(Path element: stream) {
+					delete(element);
+				}
+			}
+		}
+		Files.delete(node);
+	}
+
+}
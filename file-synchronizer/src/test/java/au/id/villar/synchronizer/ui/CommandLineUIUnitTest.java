@@ -0,0 +1,94 @@
+package au.id.villar.synchronizer.ui;
+
+import static org.junit.Assert.*;
+
+import au.id.villar.synchronizer.ChangesSearcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class CommandLineUIUnitTest {
+
+	Path testRoot;
+
+	@Before
+	public void setUp() throws IOException {
+		testRoot = Files.createTempDirectory("TEST_au.id.villar.synchronizer");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		delete(testRoot);
+	}
+
+	@Test
+	public void searchFailureKeptWhenCloseFailsTest() throws IOException, InterruptedException {
+		Path root1 = Files.createDirectory(testRoot.resolve("root1"));
+		Path root2 = Files.createDirectory(testRoot.resolve("root2"));
+		InfoHandler handler = new InfoHandler(false, true, new PrintStream(new ByteArrayOutputStream()), root1,
+				root2);
+		ChangesSearcher searcher = new ChangesSearcher(handler, root1, root2, null);
+		// a relative path can't be made relative to the absolute roots, so closing the handler fails
+		handler.missingPath(Paths.get("relative"), Paths.get("relative"));
+		Files.delete(root1);
+
+		try {
+			CommandLineUI.search(searcher, handler, null);
+			fail("the search should have failed");
+		} catch (IOException e) {
+			assertEquals(1, e.getSuppressed().length);
+			assertTrue(e.getSuppressed()[0] instanceof IllegalStateException);
+		}
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void closeFailureThrownAfterSearchTest() throws IOException, InterruptedException {
+		Path root1 = Files.createDirectory(testRoot.resolve("root1"));
+		Path root2 = Files.createDirectory(testRoot.resolve("root2"));
+		InfoHandler handler = new InfoHandler(false, true, new PrintStream(new ByteArrayOutputStream()), root1,
+				root2);
+		ChangesSearcher searcher = new ChangesSearcher(handler, root1, root2, null);
+		handler.missingPath(Paths.get("relative"), Paths.get("relative"));
+
+		CommandLineUI.search(searcher, handler, null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void budgetNeedsContentLevelTest() throws IOException, InterruptedException {
+		CommandLineUI.main(new String[] {"--path1=" + testRoot, "--path2=" + testRoot, "--level=LAST_MODIFIED",
+				"--byteBudget=1000", "--stateDir=" + testRoot.resolve("state")});
+	}
+
+	@Test
+	public void verifiedCopiesPerShardTest() {
+		StateFiles stateFiles = new StateFiles(testRoot, testRoot.resolve("root1"), testRoot.resolve("root2"));
+		Path shard0 = stateFiles.verifiedCopies(0, 2);
+		Path shard1 = stateFiles.verifiedCopies(1, 2);
+		Path unsharded = stateFiles.verifiedCopies(0, 1);
+		assertNotEquals(shard0, shard1);
+		assertNotEquals(shard0, unsharded);
+		assertNotEquals(shard1, unsharded);
+		assertNotEquals(stateFiles.cursor(0, 2), shard0);
+	}
+
+	private void delete(Path node) throws IOException {
+		if(Files.isDirectory(node)) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(node)) {
+				for(Path element: stream) {
+					delete(element);
+				}
+			}
+		}
+		Files.delete(node);
+	}
+
+}
@@ -0,0 +1,235 @@
+package au.id.villar.synchronizer.ui;
+
+import static org.junit.Assert.*;
+
+import au.id.villar.synchronizer.BufferPool;
+import au.id.villar.synchronizer.DuplicatesFinder;
+import au.id.villar.synchronizer.VerifiedCopies;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+public class FileCopierUnitTest {
+
+	Path testRoot;
+	Path root1;
+	Path root2;
+	StateFiles stateFiles;
+
+	@Before
+	public void setUp() throws IOException {
+		testRoot = Files.createTempDirectory("TEST_au.id.villar.synchronizer");
+		root1 = Files.createDirectory(testRoot.resolve("root1"));
+		root2 = Files.createDirectory(testRoot.resolve("root2"));
+		stateFiles = new StateFiles(testRoot.resolve("state"), root1, root2);
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		delete(testRoot);
+	}
+
+	@Test
+	public void journalTest() throws IOException {
+		Path temp = root2.resolve("a\tb\nc\\d.sync-tmp");
+		Path destination = root2.resolve("a\tb\nc\\d");
+		Path doneTemp = root2.resolve("done.sync-tmp");
+
+		CopyJournal journal = new CopyJournal(stateFiles.journal());
+		journal.begin(doneTemp, root2.resolve("done"));
+		journal.written(doneTemp, root2.resolve("done"));
+		journal.begin(temp, destination);
+		journal.written(temp, destination);
+		journal.close();
+		Files.write(stateFiles.journal(), "BEGIN\t/half/written".getBytes(StandardCharsets.UTF_8),
+				StandardOpenOption.APPEND);
+
+		List<CopyJournal.Entry> pending = new CopyJournal(stateFiles.journal()).pending();
+
+		assertEquals(2, pending.size());
+		assertEquals(doneTemp, pending.get(0).temp);
+		assertEquals(temp, pending.get(1).temp);
+		assertEquals(destination, pending.get(1).destination);
+		assertTrue(pending.get(1).written);
+
+		journal = new CopyJournal(stateFiles.journal());
+		journal.done(doneTemp, root2.resolve("done"));
+		journal.close();
+		assertTrue(new CopyJournal(stateFiles.journal()).pending().isEmpty());
+	}
+
+	@Test
+	public void journalKeepsAbsolutePathsTest() throws IOException {
+		Path relative = Paths.get("").toAbsolutePath().relativize(root2.resolve("file"));
+
+		CopyJournal journal = new CopyJournal(stateFiles.journal());
+		journal.begin(relative, relative);
+		journal.close();
+
+		assertEquals(root2.resolve("file"), new CopyJournal(stateFiles.journal()).pending().get(0).destination);
+	}
+
+	@Test
+	public void recoverTest() throws IOException {
+		// interrupted while writing: the temporary file goes, the destination stays as it was
+		Files.write(root2.resolve("begun"), "OLD".getBytes());
+		Files.write(root2.resolve(".begun.sync-tmp"), "HALF".getBytes());
+		// interrupted once written: the copy is put in place
+		Files.write(root2.resolve("written"), "OLD".getBytes());
+		Files.write(root2.resolve(".written.sync-tmp"), "NEW".getBytes());
+		// a directory replacing another one
+		Files.createDirectories(root2.resolve(Paths.get("dir", "old")));
+		Files.createDirectories(root2.resolve(Paths.get(".dir.sync-tmp", "new")));
+
+		CopyJournal journal = new CopyJournal(stateFiles.journal());
+		journal.begin(root2.resolve(".begun.sync-tmp"), root2.resolve("begun"));
+		journal.begin(root2.resolve(".written.sync-tmp"), root2.resolve("written"));
+		journal.written(root2.resolve(".written.sync-tmp"), root2.resolve("written"));
+		journal.begin(root2.resolve(".dir.sync-tmp"), root2.resolve("dir"));
+		journal.written(root2.resolve(".dir.sync-tmp"), root2.resolve("dir"));
+		journal.begin(root2.resolve(".gone.sync-tmp"), root2.resolve("gone"));
+		journal.close();
+
+		FileCopier copier = new FileCopier(new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE), stateFiles);
+
+		assertEquals(4, copier.recover());
+		assertEquals("OLD", new String(Files.readAllBytes(root2.resolve("begun"))));
+		assertFalse(Files.exists(root2.resolve(".begun.sync-tmp")));
+		assertEquals("NEW", new String(Files.readAllBytes(root2.resolve("written"))));
+		assertFalse(Files.exists(root2.resolve(".written.sync-tmp")));
+		assertTrue(Files.isDirectory(root2.resolve(Paths.get("dir", "new"))));
+		assertFalse(Files.exists(root2.resolve(Paths.get("dir", "old"))));
+		assertFalse(Files.exists(root2.resolve(".dir.sync-tmp")));
+		assertFalse(Files.exists(stateFiles.journal()));
+		assertEquals(0, copier.recover());
+	}
+
+	@Test
+	public void dedupAfterReplacingCandidateTest() throws IOException {
+		Files.write(root2.resolve("x"), "AAAA".getBytes());
+		Files.write(root1.resolve("x"), "BBBB".getBytes());
+		Files.write(root1.resolve("z"), "AAAA".getBytes());
+
+		FileCopier copier = new FileCopier(new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE), stateFiles);
+		copier.setDuplicatesFinder(new DuplicatesFinder(Arrays.asList(root1, root2), Collections.emptyList()));
+		copier.copy(root1.resolve("x"), root2.resolve("x"), root2);
+		copier.flush();
+		copier.copy(root1.resolve("z"), root2.resolve("z"), root2);
+		copier.flush();
+
+		assertEquals("BBBB", new String(Files.readAllBytes(root2.resolve("x"))));
+		assertEquals("AAAA", new String(Files.readAllBytes(root2.resolve("z"))));
+	}
+
+	@Test
+	public void verifiedCopyRecordedTest() throws IOException {
+		Files.createDirectories(root1.resolve("dir"));
+		Files.write(root1.resolve(Paths.get("dir", "x")), "XXXX".getBytes());
+		Files.write(root1.resolve(Paths.get("dir", "y")), "YYYY".getBytes());
+		Files.write(root2.resolve("other"), "YYYY".getBytes());
+
+		VerifiedCopies verifiedCopies = new VerifiedCopies(stateFiles.verifiedCopies(0, 1));
+		FileCopier copier = new FileCopier(new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE), stateFiles);
+		copier.setVerifiedCopies(verifiedCopies);
+		copier.setDuplicatesFinder(new DuplicatesFinder(Arrays.asList(root1, root2), Collections.emptyList()));
+		copier.copy(root1.resolve("dir"), root2.resolve("dir"), root2);
+		copier.flush();
+
+		// "y" is linked to "other", so nothing was written to check
+		assertTrue(Files.isSameFile(root2.resolve("other"), root2.resolve(Paths.get("dir", "y"))));
+		assertEquals(1, verifiedCopies.size());
+		assertArrayEquals(VerifiedCopies.newDigest().digest("XXXX".getBytes()), verifiedCopies.take(
+				root2.resolve(Paths.get("dir", "x")), 4,
+				Files.getLastModifiedTime(root1.resolve(Paths.get("dir", "x"))).toMillis()));
+	}
+
+	@Test
+	public void failedVerificationTest() throws IOException {
+		Files.write(root1.resolve("x"), "NEW".getBytes());
+		Files.write(root2.resolve("x"), "OLD".getBytes());
+
+		VerifiedCopies verifiedCopies = new VerifiedCopies(stateFiles.verifiedCopies(0, 1));
+		FileCopier copier = new FileCopier(new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE), stateFiles) {
+			@Override
+			byte[] readDigest(Path file) {
+				return new byte[32];
+			}
+		};
+		copier.setVerifiedCopies(verifiedCopies);
+		copier.copy(root1.resolve("x"), root2.resolve("x"), root2);
+		try {
+			copier.flush();
+			fail("the copy should have failed verification");
+		} catch (IOException e) {
+			// expected
+		}
+
+		assertEquals("OLD", new String(Files.readAllBytes(root2.resolve("x"))));
+		assertFalse(Files.exists(root2.resolve(".x.sync-tmp")));
+		assertTrue(new CopyJournal(stateFiles.journal()).pending().isEmpty());
+		assertEquals(0, verifiedCopies.size());
+	}
+
+	@Test
+	public void batchTest() throws IOException {
+		for(String name: Arrays.asList("a", "b", "c")) {
+			Files.write(root1.resolve(name), name.getBytes());
+		}
+		Files.write(root2.resolve("a"), "OLD".getBytes());
+
+		FileCopier copier = new FileCopier(new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE), stateFiles);
+		copier.copy(root1.resolve("a"), root2.resolve("a"), root2);
+		copier.copy(root1.resolve("b"), root2.resolve("b"), root2);
+		copier.copy(root1.resolve("c"), root2.resolve("c"), root2);
+
+		// written, but nothing renamed into place until the batch is committed
+		assertEquals("OLD", new String(Files.readAllBytes(root2.resolve("a"))));
+		assertFalse(Files.exists(root2.resolve("b")));
+		assertEquals(3, new CopyJournal(stateFiles.journal()).pending().size());
+
+		// deleting a path with a pending copy commits the batch first
+		copier.delete(root2.resolve("c"));
+
+		assertEquals("a", new String(Files.readAllBytes(root2.resolve("a"))));
+		assertEquals("b", new String(Files.readAllBytes(root2.resolve("b"))));
+		assertFalse(Files.exists(root2.resolve("c")));
+		assertFalse(Files.exists(root2.resolve(".a.sync-tmp")));
+		assertTrue(new CopyJournal(stateFiles.journal()).pending().isEmpty());
+	}
+
+	@Test
+	public void fullBatchCommittedTest() throws IOException {
+		FileCopier copier = new FileCopier(new BufferPool(BufferPool.DEFAULT_BUFFER_SIZE), stateFiles);
+		for(int x = 0; x < FileCopier.BATCH_SIZE; x++) {
+			Files.write(root1.resolve("file" + x), ("" + x).getBytes());
+			copier.copy(root1.resolve("file" + x), root2.resolve("file" + x), root2);
+		}
+
+		assertEquals("0", new String(Files.readAllBytes(root2.resolve("file0"))));
+		assertTrue(new CopyJournal(stateFiles.journal()).pending().isEmpty());
+	}
+
+	private void delete(Path node) throws IOException {
+		if(Files.isDirectory(node)) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(node)) {
+				for(Path element: stream) {
+					delete(element);
+				}
+			}
+		}
+		Files.delete(node);
+	}
+
+}
@@ -0,0 +1,59 @@
+package au.id.villar.synchronizer.ui;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class InfoHandlerUnitTest {
+
+	private final Path dir1 = Paths.get("/one");
+	private final Path dir2 = Paths.get("/two");
+
+	@Test
+	public void appendJsonStringTest() {
+		StringBuilder builder = new StringBuilder();
+		InfoHandler.appendJsonString(builder, "a\"b\\c\nd\re\tf\u0001g\u00e9");
+		assertEquals("\"a\\\"b\\\\c\\nd\\re\\tf\\u0001g\u00e9\"", builder.toString());
+	}
+
+	@Test
+	public void closeWritesEverythingInOrderTest() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		InfoHandler handler = new InfoHandler(false, true, new PrintStream(bytes), dir1, dir2);
+		for(int x = 0; x < 20000; x++) {
+			handler.differentFiles(dir1.resolve("f" + x), dir2.resolve("f" + x));
+		}
+		handler.close();
+
+		String[] lines = new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\n");
+		assertEquals(20000, lines.length);
+		for(int x = 0; x < lines.length; x++) {
+			assertEquals(Paths.get("f" + x), ShardCoordinator.readPath(lines[x]));
+		}
+	}
+
+	@Test
+	public void failingEventDoesNotStopTheWriterTest() {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		InfoHandler handler = new InfoHandler(false, true, new PrintStream(bytes), dir1, dir2);
+		// a relative path can't be made relative to the absolute roots
+		handler.missingPath(Paths.get("relative"), Paths.get("relative"));
+		for(int x = 0; x < 20000; x++) {
+			handler.differentFiles(dir1.resolve("f" + x), dir2.resolve("f" + x));
+		}
+		try {
+			handler.close();
+			fail("failure not reported");
+		} catch (IllegalStateException e) {
+			assertTrue(e.getCause() instanceof IllegalArgumentException);
+		}
+		assertEquals(20000, new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\n").length);
+	}
+
+}
@@ -0,0 +1,51 @@
+package au.id.villar.synchronizer.ui;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+public class RingBufferUnitTest {
+
+	@Test(expected = IllegalArgumentException.class)
+	public void capacityMustBePowerOfTwoTest() {
+		new RingBuffer<Integer>(6);
+	}
+
+	@Test
+	public void orderTest() throws InterruptedException {
+		RingBuffer<Integer> buffer = new RingBuffer<>(4);
+		assertNull(buffer.poll());
+
+		List<Integer> polled = new ArrayList<>();
+		Thread consumer = new Thread(() -> {
+			while(polled.size() < 1000) {
+				Integer element = buffer.poll();
+				if(element != null)
+					polled.add(element);
+			}
+		});
+		consumer.start();
+		for(int x = 0; x < 1000; x++) {
+			buffer.put(x);
+		}
+		consumer.join();
+
+		for(int x = 0; x < 1000; x++) {
+			assertEquals(Integer.valueOf(x), polled.get(x));
+		}
+		assertNull(buffer.poll());
+	}
+
+	@Test(expected = IllegalStateException.class)
+	public void abandonedTest() {
+		RingBuffer<Integer> buffer = new RingBuffer<>(2);
+		buffer.put(1);
+		buffer.put(2);
+		buffer.abandon();
+		buffer.put(3);
+	}
+
+}
@@ -0,0 +1,141 @@
+package au.id.villar.synchronizer.ui;
+
+import static org.junit.Assert.*;
+
+import au.id.villar.synchronizer.ChangesSearcher;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+public class ShardCoordinatorUnitTest {
+
+	Path testRoot;
+
+	@Before
+	public void setUp() throws IOException {
+		testRoot = Files.createTempDirectory("TEST_au.id.villar.synchronizer");
+	}
+
+	@After
+	public void tearDown() throws IOException {
+		delete(testRoot);
+	}
+
+	@Test
+	public void readPathTest() {
+		String name = "a\"b\\c\u0001d\te";
+		StringBuilder line = new StringBuilder("{\"event\":\"different\",\"path\":");
+		InfoHandler.appendJsonString(line, Paths.get("dir", name).toString());
+		line.append(",\"path1\":\"x\"}");
+
+		assertEquals(Paths.get("dir", name), ShardCoordinator.readPath(line.toString()));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void readPathWithoutPathTest() {
+		ShardCoordinator.readPath("{\"event\":\"different\"}");
+	}
+
+	@Test
+	public void mergeTest() throws IOException {
+		Path report1 = testRoot.resolve("report1");
+		Path report2 = testRoot.resolve("report2");
+		Files.write(report1, Arrays.asList(
+				"{\"path\":\"a\",\"n\":\"1\"}",
+				"",
+				"{\"path\":\"a/b\",\"n\":\"1\"}",
+				"{\"path\":\"c\",\"n\":\"1\"}"), StandardCharsets.UTF_8);
+		Files.write(report2, Arrays.asList(
+				"{\"path\":\"a\",\"n\":\"2\"}",
+				"{\"path\":\"a-b\",\"n\":\"2\"}",
+				"{\"path\":\"b\",\"n\":\"2\"}"), StandardCharsets.UTF_8);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		ShardCoordinator.merge(Arrays.asList(report2, report1), new PrintStream(bytes, true));
+
+		// "a/b" goes right after its directory "a", ties are kept in the order the reports were given
+		assertEquals(Arrays.asList(
+				"{\"path\":\"a\",\"n\":\"2\"}",
+				"{\"path\":\"a\",\"n\":\"1\"}",
+				"{\"path\":\"a/b\",\"n\":\"1\"}",
+				"{\"path\":\"a-b\",\"n\":\"2\"}",
+				"{\"path\":\"b\",\"n\":\"2\"}",
+				"{\"path\":\"c\",\"n\":\"1\"}"),
+				Arrays.asList(new String(bytes.toByteArray(), StandardCharsets.UTF_8).split("\n")));
+	}
+
+	@Test
+	public void mergedShardsMatchUnshardedSearchTest() throws IOException, InterruptedException {
+		Path root1 = Files.createDirectory(testRoot.resolve("root1"));
+		Path root2 = Files.createDirectory(testRoot.resolve("root2"));
+		for(int x = 0; x < 20; x++) {
+			Path dir = Paths.get("dir" + x);
+			Files.createDirectory(root1.resolve(dir));
+			Files.createDirectory(root2.resolve(dir));
+			Files.write(root1.resolve(dir.resolve("uno")), "UNO".getBytes());
+			Files.write(root2.resolve(dir.resolve("uno")), ("UNO" + x).getBytes());
+			Files.write(root1.resolve("file" + x), "FILE".getBytes());
+			Files.write(root2.resolve("file" + x + "-b"), "FILE".getBytes());
+		}
+
+		ByteArrayOutputStream unsharded = new ByteArrayOutputStream();
+		search(root1, root2, 0, 1, new PrintStream(unsharded));
+
+		List<Path> reports = new ArrayList<>();
+		for(int shard = 0; shard < 3; shard++) {
+			Path report = testRoot.resolve("shard" + shard);
+			try (PrintStream out = new PrintStream(Files.newOutputStream(report))) {
+				search(root1, root2, shard, 3, out);
+			}
+			reports.add(report);
+		}
+		ByteArrayOutputStream merged = new ByteArrayOutputStream();
+		ShardCoordinator.merge(reports, new PrintStream(merged, true));
+
+		assertEquals(60, new String(unsharded.toByteArray(), StandardCharsets.UTF_8).split("\n").length);
+		assertArrayEquals(unsharded.toByteArray(), merged.toByteArray());
+	}
+
+	@Test(expected = IOException.class)
+	public void failingWorkerTest() throws IOException, InterruptedException {
+		ShardCoordinator.runShards(2, Arrays.asList("--path1=" + testRoot.resolve("missing1"),
+				"--path2=" + testRoot.resolve("missing2")), new PrintStream(new ByteArrayOutputStream()));
+	}
+
+	private void search(Path root1, Path root2, int shard, int shards, PrintStream out)
+			throws IOException, InterruptedException {
+		InfoHandler handler = new InfoHandler(false, true, out, root1, root2);
+		ChangesSearcher searcher = new ChangesSearcher(handler, root1, root2, null);
+		searcher.setShard(shard, shards);
+		try {
+			searcher.search();
+		} finally {
+			handler.close();
+		}
+	}
+
+	private void delete(Path node) throws IOException {
+		if(Files.isDirectory(node)) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(node)) {
+				for(Path element: stream) {
+					delete(element);
+				}
+			}
+		}
+		Files.delete(node);
+	}
+
+}